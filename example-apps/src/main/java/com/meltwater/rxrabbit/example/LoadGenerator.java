@@ -8,6 +8,7 @@ import com.meltwater.rxrabbit.DefaultPublisherFactory;
 import com.meltwater.rxrabbit.DeliveryMode;
 import com.meltwater.rxrabbit.Exchange;
 import com.meltwater.rxrabbit.Payload;
+import com.meltwater.rxrabbit.PublishRequest;
 import com.meltwater.rxrabbit.PublisherFactory;
 import com.meltwater.rxrabbit.PublisherSettings;
 import com.meltwater.rxrabbit.RabbitPublisher;
@@ -16,6 +17,7 @@ import com.meltwater.rxrabbit.impl.DefaultChannelFactory;
 import com.meltwater.rxrabbit.util.FibonacciBackoffAlgorithm;
 import com.meltwater.rxrabbit.util.Logger;
 import com.rabbitmq.client.AMQP;
+import rx.Observable;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -64,20 +66,20 @@ public class LoadGenerator {
                 "numToPublish", nrToPublish,
                 "exchange", outputExchange);
 
-        from(ids)
-                .flatMap( id -> {
+        publish.publishStream(from(ids)
+                .map( id -> {
                     AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties().builder();
                     builder.messageId(String.valueOf(id));
                     builder.deliveryMode(DeliveryMode.persistent.code);
                     builder.appId("load-generator");
                     String msgPayload = "Message nr " + id;
-                    return publish.call(
+                    return new PublishRequest(
                             new Exchange(outputExchange),
                             new RoutingKey("routing.key"),
                             builder.build(),
-                            new Payload(msgPayload.getBytes(Charsets.UTF_8)))
-                            .toObservable();
-                })
+                            new Payload(msgPayload.getBytes(Charsets.UTF_8)));
+                }))
+                .flatMap(result -> result.isSuccess() ? Observable.just(result) : Observable.error(result.error))
                 .doOnError(throwable -> log.errorWithParams("Unexpected error when publishing.", throwable))
                 .timeout(30, TimeUnit.SECONDS)
                 .toBlocking()
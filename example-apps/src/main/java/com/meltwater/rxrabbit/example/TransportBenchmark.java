@@ -0,0 +1,91 @@
+package com.meltwater.rxrabbit.example;
+
+import com.google.common.base.Charsets;
+import com.meltwater.rxrabbit.BrokerAddresses;
+import com.meltwater.rxrabbit.ConnectionSettings;
+import com.meltwater.rxrabbit.DefaultPublisherFactory;
+import com.meltwater.rxrabbit.Exchange;
+import com.meltwater.rxrabbit.Payload;
+import com.meltwater.rxrabbit.PublishRequest;
+import com.meltwater.rxrabbit.PublisherSettings;
+import com.meltwater.rxrabbit.RabbitPublisher;
+import com.meltwater.rxrabbit.RoutingKey;
+import com.meltwater.rxrabbit.impl.DefaultChannelFactory;
+import com.meltwater.rxrabbit.util.Logger;
+import com.rabbitmq.client.AMQP;
+import rx.Observable;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the same messages over the same number of connections, first with blocking sockets and then with the NIO
+ * transport, and logs the throughput and the number of live threads of each mode.
+ */
+public class TransportBenchmark {
+
+    private static final Logger log = new Logger(TransportBenchmark.class);
+
+    public static void main(String[] args) throws IOException {
+        Properties prop = new Properties();
+        prop.load(TransportBenchmark.class.getResourceAsStream("/transport_benchmark.properties"));
+        prop.putAll(System.getProperties());
+
+        final BrokerAddresses addresses = new BrokerAddresses(prop.getProperty("rabbit.broker.uris"));
+        final String exchange = prop.getProperty("publish.to.exchange");
+        final long nrToPublish = Long.parseLong(prop.getProperty("publish.message.count"));
+        final int connections = Integer.parseInt(prop.getProperty("connections.per.type"));
+        final int channels = Integer.parseInt(prop.getProperty("publish.channels"));
+        final int nioThreads = Integer.parseInt(prop.getProperty("nio.io.threads"));
+
+        ConnectionSettings blocking = new ConnectionSettings()
+                .withConnectionsPerType(connections);
+        ConnectionSettings nio = new ConnectionSettings()
+                .withConnectionsPerType(connections)
+                .withNio(nioThreads);
+
+        //The first run warms up the JVM and the broker
+        run("warmup", addresses, blocking, exchange, nrToPublish, channels);
+        run("blocking", addresses, blocking, exchange, nrToPublish, channels);
+        run("nio", addresses, nio, exchange, nrToPublish, channels);
+    }
+
+    private static void run(String mode, BrokerAddresses addresses, ConnectionSettings connectionSettings, String exchange, long nrToPublish, int channels) throws IOException {
+        PublisherSettings publisherSettings = new PublisherSettings()
+                .withPublisherConfirms(true)
+                .withNumChannels(channels)
+                .withRetryCount(3);
+
+        DefaultChannelFactory channelFactory = new DefaultChannelFactory(addresses, connectionSettings);
+        final RabbitPublisher publisher = new DefaultPublisherFactory(channelFactory, publisherSettings).createPublisher();
+
+        final byte[] payload = "benchmark message".getBytes(Charsets.UTF_8);
+        final long start = System.nanoTime();
+        publisher.publishStream(Observable.range(1, (int) nrToPublish)
+                .map(id -> new PublishRequest(
+                        new Exchange(exchange),
+                        new RoutingKey("routing.key"),
+                        new AMQP.BasicProperties.Builder().messageId(String.valueOf(id)).build(),
+                        new Payload(payload))))
+                .flatMap(result -> result.isSuccess() ? Observable.just(result) : Observable.error(result.error))
+                .timeout(30, TimeUnit.SECONDS)
+                .toBlocking()
+                .last();
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        final int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        final int openConnections = channelFactory.getOpenConnections().size();
+
+        publisher.close();
+
+        log.infoWithParams("Benchmark run finished.",
+                "mode", mode,
+                "messages", nrToPublish,
+                "elapsedMillis", elapsedMillis,
+                "messagesPerSecond", nrToPublish * 1000 / Math.max(1, elapsedMillis),
+                "openConnections", openConnections,
+                "liveThreads", threads,
+                "settings", connectionSettings);
+    }
+}
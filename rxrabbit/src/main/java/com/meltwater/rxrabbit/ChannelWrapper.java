@@ -21,6 +21,8 @@ public interface ChannelWrapper {
      * This method should be called even if the channel is known to be closed by an error to make
      * sure that the corresponding {@link com.rabbitmq.client.Connection} is also closed and all resources
      * are released.
+     *
+     * Only this channel is closed if its connection is still healthy, otherwise all channels on the connection are closed.
      */
     void closeWithError();
 
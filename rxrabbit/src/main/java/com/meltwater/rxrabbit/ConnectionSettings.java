@@ -23,12 +23,25 @@ public class ConnectionSettings {
     public static final int DEFAULT_TIMEOUT_MILLIS = 30_000;
     public static final int DEFAULT_HANDSHAKE_MILLIS = 10_000;
     public static final int DEFAULT_FRAME_MAX = 0;
+    public static final int DEFAULT_CONNECTIONS_PER_TYPE = 1;
+    public static final int DEFAULT_PUBLISH_CHANNEL_SPARES = 0;
+    public static final int DEFAULT_NIO_IO_THREADS = 1;
+    public static final int DEFAULT_NIO_WRITE_QUEUE_CAPACITY = 10_000;
+    public static final int DEFAULT_NIO_BYTE_BUFFER_SIZE = 32_768;
 
     private int heartbeat                   = DEFAULT_HEARTBEAT; //in seconds
     private int connection_timeout_millis   = DEFAULT_CONNECTION_TIMEOUT;
     private int shutdown_timeout_millis     = DEFAULT_TIMEOUT_MILLIS;
     private int handshake_timeout_millis    = DEFAULT_HANDSHAKE_MILLIS;
     private int frame_max                   = DEFAULT_FRAME_MAX; //0 = Infinite
+    private int connections_per_type        = DEFAULT_CONNECTIONS_PER_TYPE;
+    private int publish_channel_spares      = DEFAULT_PUBLISH_CHANNEL_SPARES;
+
+    private boolean nio                     = false;
+    private int nio_io_threads              = DEFAULT_NIO_IO_THREADS;
+    private int nio_write_queue_capacity    = DEFAULT_NIO_WRITE_QUEUE_CAPACITY;
+    private int nio_read_byte_buffer_size   = DEFAULT_NIO_BYTE_BUFFER_SIZE;
+    private int nio_write_byte_buffer_size  = DEFAULT_NIO_BYTE_BUFFER_SIZE;
 
     private final Map<String,Object> defaultClientCapabilities = new HashMap<String, Object>() {{
         //Lets us receive cancellation events, such as the queue being deleted or that the node on which the queue is located failing
@@ -74,6 +87,34 @@ public class ConnectionSettings {
         return frame_max;
     }
 
+    public int getConnections_per_type() {
+        return connections_per_type;
+    }
+
+    public int getPublish_channel_spares() {
+        return publish_channel_spares;
+    }
+
+    public boolean isNio() {
+        return nio;
+    }
+
+    public int getNio_io_threads() {
+        return nio_io_threads;
+    }
+
+    public int getNio_write_queue_capacity() {
+        return nio_write_queue_capacity;
+    }
+
+    public int getNio_read_byte_buffer_size() {
+        return nio_read_byte_buffer_size;
+    }
+
+    public int getNio_write_byte_buffer_size() {
+        return nio_write_byte_buffer_size;
+    }
+
     public Map<String, Object> getClient_properties() {
         client_properties.put("capabilities", defaultClientCapabilities);
         return client_properties;
@@ -109,6 +150,74 @@ public class ConnectionSettings {
         return this;
     }
 
+    /**
+     * The number of connections to open for each channel type (publish and consume), the admin channels always share
+     * a single connection. New channels are created on the connection with the fewest open channels, so the socket and
+     * the connection thread are not shared by all channels of a type.
+     *
+     * @param connections_per_type the max number of connections per channel type
+     * @return this settings object
+     */
+    public ConnectionSettings withConnectionsPerType(int connections_per_type) {
+        assert connections_per_type>0;
+        this.connections_per_type = connections_per_type;
+        return this;
+    }
+
+    /**
+     * Keeps a number of open publish channels ready so that a publisher gets a channel without waiting for a connection
+     * handshake or channel open, both on startup and after its channel was closed with an error.
+     * The spares are opened in the background when the channel factory is created and replenished every time one is used.
+     * They are plain channels, a publisher that uses publisher confirms puts the channel it gets in confirm mode itself.
+     * Spares do not keep a connection open once its last used channel is closed, and are closed by
+     * {@link com.meltwater.rxrabbit.impl.DefaultChannelFactory#close()}.
+     *
+     * @param publish_channel_spares the number of spare publish channels to keep open, 0 to open every channel on demand
+     * @return this settings object
+     */
+    public ConnectionSettings withPublishChannelSpares(int publish_channel_spares) {
+        assert publish_channel_spares>=0;
+        this.publish_channel_spares = publish_channel_spares;
+        return this;
+    }
+
+    /**
+     * Uses the NIO transport of the rabbit client instead of blocking sockets. All connections created by the same
+     * channel factory share the given number of IO threads, instead of one reader thread per connection.
+     *
+     * @param nio_io_threads the number of IO threads shared by all connections, each connection is served by one of them
+     * @return this settings object
+     */
+    public ConnectionSettings withNio(int nio_io_threads) {
+        assert nio_io_threads>0;
+        this.nio = true;
+        this.nio_io_threads = nio_io_threads;
+        return this;
+    }
+
+    /**
+     * @param nio_write_queue_capacity the max number of outbound frames queued per connection before a write blocks, only used with NIO
+     * @return this settings object
+     */
+    public ConnectionSettings withNioWriteQueueCapacity(int nio_write_queue_capacity) {
+        assert nio_write_queue_capacity>0;
+        this.nio_write_queue_capacity = nio_write_queue_capacity;
+        return this;
+    }
+
+    /**
+     * @param nio_read_byte_buffer_size the size in bytes of the read buffer of each connection, only used with NIO
+     * @param nio_write_byte_buffer_size the size in bytes of the write buffer of each connection, only used with NIO
+     * @return this settings object
+     */
+    public ConnectionSettings withNioByteBufferSizes(int nio_read_byte_buffer_size, int nio_write_byte_buffer_size) {
+        assert nio_read_byte_buffer_size>0;
+        assert nio_write_byte_buffer_size>0;
+        this.nio_read_byte_buffer_size = nio_read_byte_buffer_size;
+        this.nio_write_byte_buffer_size = nio_write_byte_buffer_size;
+        return this;
+    }
+
     public ConnectionSettings withClientProperties(Map<String, String> client_properties) {
         assert client_properties!=null;
         this.client_properties = new HashMap<>(client_properties);
@@ -127,6 +236,13 @@ public class ConnectionSettings {
         if (shutdown_timeout_millis != that.shutdown_timeout_millis) return false;
         if (handshake_timeout_millis != that.handshake_timeout_millis) return false;
         if (frame_max != that.frame_max) return false;
+        if (connections_per_type != that.connections_per_type) return false;
+        if (publish_channel_spares != that.publish_channel_spares) return false;
+        if (nio != that.nio) return false;
+        if (nio_io_threads != that.nio_io_threads) return false;
+        if (nio_write_queue_capacity != that.nio_write_queue_capacity) return false;
+        if (nio_read_byte_buffer_size != that.nio_read_byte_buffer_size) return false;
+        if (nio_write_byte_buffer_size != that.nio_write_byte_buffer_size) return false;
         return mapToString(client_properties).equals(mapToString(that.client_properties));
     }
 
@@ -137,6 +253,13 @@ public class ConnectionSettings {
         result = 31 * result + shutdown_timeout_millis;
         result = 31 * result + handshake_timeout_millis;
         result = 31 * result + frame_max;
+        result = 31 * result + connections_per_type;
+        result = 31 * result + publish_channel_spares;
+        result = 31 * result + (nio ? 1 : 0);
+        result = 31 * result + nio_io_threads;
+        result = 31 * result + nio_write_queue_capacity;
+        result = 31 * result + nio_read_byte_buffer_size;
+        result = 31 * result + nio_write_byte_buffer_size;
         result = 31 * result + client_properties.hashCode();
         return result;
     }
@@ -149,6 +272,13 @@ public class ConnectionSettings {
                 ", shutdown_timeout_millis:" + shutdown_timeout_millis +
                 ", handshake_timeout_millis:" + handshake_timeout_millis +
                 ", frame_max:" + frame_max +
+                ", connections_per_type:" + connections_per_type +
+                ", publish_channel_spares:" + publish_channel_spares +
+                ", nio:" + nio +
+                ", nio_io_threads:" + nio_io_threads +
+                ", nio_write_queue_capacity:" + nio_write_queue_capacity +
+                ", nio_read_byte_buffer_size:" + nio_read_byte_buffer_size +
+                ", nio_write_byte_buffer_size:" + nio_write_byte_buffer_size +
                 ", client_properties:" + mapToString(client_properties) +
                 '}';
     }
@@ -88,4 +88,19 @@ public interface ConsumeChannel extends ChannelWrapper{
      * @throws java.io.IOException if an error is encountered
      */
     void basicQos(int prefetchCount) throws IOException;
+
+    /**
+     * Request a specific prefetchCount "quality of service" settings
+     * for this channel. A non-global prefetch count only applies to the
+     * consumers that are started after it is set, so changing the prefetch
+     * count of a running consumer requires a global one.
+     *
+     * @see com.rabbitmq.client.Channel#basicQos(int, boolean)
+     * @param prefetchCount maximum number of messages that the server
+     * will deliver, 0 if unlimited
+     * @param global true if the settings should be applied to the
+     * entire channel rather than each consumer
+     * @throws java.io.IOException if an error is encountered
+     */
+    void basicQos(int prefetchCount, boolean global) throws IOException;
 }
@@ -20,4 +20,13 @@ public interface ConsumeEventListener {
     void afterFailedNack(Message message, Exception error, boolean channelIsOpen);
 
     void done(Message message, long unAckedMessages, long ackStartTimestamp, long processingStartTimestamp);
+
+    /**
+     * Called every second for each consumer channel.
+     *
+     * @param oldestUnackedAgeMillis the time since the oldest message that is not acked or rejected yet was received, 0 if there is none
+     * @param unAckedMessages the number of messages that are not acked or rejected yet
+     */
+    default void oldestUnacked(long oldestUnackedAgeMillis, long unAckedMessages) {
+    }
 }
@@ -1,6 +1,12 @@
 package com.meltwater.rxrabbit;
 
+import com.meltwater.rxrabbit.util.AffinityKeyExtractor;
+import com.meltwater.rxrabbit.util.PartitionTransformer;
 import rx.Observable;
+import rx.observables.GroupedObservable;
+import rx.schedulers.Schedulers;
+
+import java.util.concurrent.TimeUnit;
 
 public interface ConsumerFactory {
 
@@ -18,6 +24,45 @@ public interface ConsumerFactory {
      */
     Observable<Message> createConsumer(String queue);
 
+    /**
+     * Creates a consumer connected to an already existing non exclusive queue, just like {@link #createConsumer(String)},
+     * but emits the messages in batches that are acked or rejected as a whole.
+     *
+     * A batch is emitted when it holds maxSize messages or when maxWaitMillis has passed since the previous batch,
+     * whichever comes first. Empty batches are never emitted.
+     *
+     * @param queue the queue that will be consumed
+     * @param maxSize the max number of messages in a batch
+     * @param maxWaitMillis the max time to wait for a batch to fill up
+     *
+     * @return an observable that will deliver the messages from the given queue in batches
+     */
+    default Observable<MessageBatch> createBatchConsumer(String queue, int maxSize, long maxWaitMillis) {
+        return createConsumer(queue)
+                .buffer(maxWaitMillis, TimeUnit.MILLISECONDS, maxSize)
+                .filter(messages -> !messages.isEmpty())
+                .map(MessageBatch::new);
+    }
+
+    /**
+     * Creates a consumer connected to an already existing non exclusive queue, just like {@link #createConsumer(String)},
+     * but fans the messages out to a number of lanes that are processed in parallel.
+     *
+     * All messages with the same key end up in the same lane, in the order they were delivered. The messages can be
+     * acked in any order, the acks are always sent on the channel the message was received on.
+     *
+     * @param queue the queue that will be consumed
+     * @param lanes the number of lanes
+     * @param keyExtractor extracts the key from the routing key and properties of the messages, see {@link AffinityKeyExtractor#ROUTING_KEY}
+     *
+     * @return an observable that emits one observable per lane
+     *
+     * @see PartitionTransformer
+     */
+    default Observable<GroupedObservable<Integer, Message>> createPartitionedConsumer(String queue, int lanes, AffinityKeyExtractor keyExtractor) {
+        return createConsumer(queue).compose(new PartitionTransformer(lanes, keyExtractor, Schedulers.computation()));
+    }
+
     /**
      * First declares a server-named exclusive, autodelete, non-durable queue bound to the given exchange and with the supplied routing key.
      * Then it creates an consumer on the newly created queue and starts consuming messages from it.
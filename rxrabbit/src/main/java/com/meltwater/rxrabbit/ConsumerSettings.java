@@ -13,12 +13,22 @@ public class ConsumerSettings {
     public static final int RETRY_FOREVER=-1;
     public static final int DEFAULT_RETRY_COUNT = RETRY_FOREVER;
     public static final int DEFAULT_CLOSE_TIMEOUT_MILLIS = 10_000;
+    public static final int DEFAULT_ACK_BATCH_SIZE = 1;
+    public static final long DEFAULT_ACK_FLUSH_INTERVAL_MILLIS = 10;
+    public static final long DEFAULT_UNACKED_WARNING_MILLIS = 6 * 60 * 1000;
 
     private int num_channels            = DEFAULT_NUM_CHANNELS;
     private int pre_fetch_count         = DEFAULT_PREFETCH_COUNT;
     private int retry_count             = DEFAULT_RETRY_COUNT; //0 or lower means forever
     private long close_timeout_millis   = DEFAULT_CLOSE_TIMEOUT_MILLIS; //0 means forever
     private String consumer_tag_prefix  = "";
+    private int ack_batch_size          = DEFAULT_ACK_BATCH_SIZE;
+    private long ack_flush_interval_millis = DEFAULT_ACK_FLUSH_INTERVAL_MILLIS;
+    private boolean direct_dispatch     = false;
+    private boolean demand_driven       = false;
+    private int min_pre_fetch_count     = 0; //0 means the pre_fetch_count is fixed
+    private int max_pre_fetch_count     = 0;
+    private long unacked_warning_millis = DEFAULT_UNACKED_WARNING_MILLIS;
     private BackoffAlgorithm backoff_algorithm = new FibonacciBackoffAlgorithm();
 
     public int getNum_channels() {
@@ -45,6 +55,34 @@ public class ConsumerSettings {
         return backoff_algorithm;
     }
 
+    public int getAck_batch_size() {
+        return ack_batch_size;
+    }
+
+    public long getAck_flush_interval_millis() {
+        return ack_flush_interval_millis;
+    }
+
+    public boolean isDirect_dispatch() {
+        return direct_dispatch;
+    }
+
+    public boolean isDemand_driven() {
+        return demand_driven;
+    }
+
+    public int getMin_pre_fetch_count() {
+        return min_pre_fetch_count;
+    }
+
+    public int getMax_pre_fetch_count() {
+        return max_pre_fetch_count;
+    }
+
+    public long getUnacked_warning_millis() {
+        return unacked_warning_millis;
+    }
+
     public ConsumerSettings withNumChannels(int num_channels) {
         assert num_channels>0;
         this.num_channels = num_channels;
@@ -79,6 +117,90 @@ public class ConsumerSettings {
         return this;
     }
 
+    /**
+     * Collects acks and nacks and sends them to the broker with one multiple ack (or nack) per batch instead of one
+     * frame per message. Acked messages are only covered by a multiple ack when all earlier messages on the channel
+     * have been acked as well, messages acked after a message that is still being processed are acked one by one.
+     *
+     * @param ack_batch_size the number of acks and nacks that triggers a flush, 1 (the default) sends every ack directly
+     * @return this settings object
+     */
+    public ConsumerSettings withAckBatchSize(int ack_batch_size) {
+        assert ack_batch_size > 0;
+        this.ack_batch_size = ack_batch_size;
+        return this;
+    }
+
+    /**
+     * @param ack_flush_interval_millis the max time an ack or nack is held back waiting for the batch to fill up
+     * @return this settings object
+     */
+    public ConsumerSettings withAckFlushIntervalMillis(long ack_flush_interval_millis) {
+        assert ack_flush_interval_millis >= 0;
+        this.ack_flush_interval_millis = ack_flush_interval_millis;
+        return this;
+    }
+
+    /**
+     * Hands the messages over from the rabbit client thread straight into one bounded queue that is drained on the
+     * consumer observeOn scheduler, instead of going via a delivery thread and an unbounded back pressure buffer.
+     * This saves one thread hop and two queues per message. Each channel has its own queue of prefetch count
+     * messages, and the messages still queued when the channel breaks are dropped as the broker delivers them again.
+     *
+     * @param direct_dispatch true to dispatch the messages directly, false (the default) to use a delivery thread
+     * @return this settings object
+     */
+    public ConsumerSettings withDirectDispatch(boolean direct_dispatch) {
+        this.direct_dispatch = direct_dispatch;
+        return this;
+    }
+
+    /**
+     * Only hands messages on when the subscriber has requested them, instead of buffering everything the broker
+     * delivers. The prefetch count of each channel follows the number of messages that are being processed plus the
+     * number of requested messages, with the configured prefetch count as upper limit, so the number of messages held
+     * in memory is bounded by what the subscriber actually asks for. The messages are emitted on the consumer observeOn
+     * scheduler without a prefetching observeOn queue, so the requests of the subscriber reach the prefetch count
+     * unchanged, and the deliveries are queued straight from the rabbit client thread whether direct dispatch is on or not.
+     *
+     * @param demand_driven true to let the subscriber demand drive the prefetch count, false (the default) to always use the configured prefetch count
+     * @return this settings object
+     */
+    public ConsumerSettings withDemandDriven(boolean demand_driven) {
+        this.demand_driven = demand_driven;
+        return this;
+    }
+
+    /**
+     * Lets the prefetch count of each channel adapt at runtime, starting from the configured prefetch count. Once a
+     * second it is raised when the subscriber was idle waiting for messages, and lowered when more messages are
+     * prefetched than the current ack rate and ack latency need.
+     *
+     * @param min_pre_fetch_count the lowest prefetch count to use
+     * @param max_pre_fetch_count the highest prefetch count to use
+     * @return this settings object
+     */
+    public ConsumerSettings withAdaptivePreFetch(int min_pre_fetch_count, int max_pre_fetch_count) {
+        assert min_pre_fetch_count>0;
+        assert max_pre_fetch_count>=min_pre_fetch_count;
+        this.min_pre_fetch_count = min_pre_fetch_count;
+        this.max_pre_fetch_count = max_pre_fetch_count;
+        return this;
+    }
+
+    /**
+     * The age of the oldest un-acked message is reported every second to {@link ConsumeEventListener#oldestUnacked(long, long)},
+     * and a warning is logged when it gets older than this.
+     *
+     * @param unacked_warning_millis how old a message can get without being acked or rejected before a warning is logged
+     * @return this settings object
+     */
+    public ConsumerSettings withUnackedWarningMillis(long unacked_warning_millis) {
+        assert unacked_warning_millis>0;
+        this.unacked_warning_millis = unacked_warning_millis;
+        return this;
+    }
+
     @Override
     public String toString() {
         return "{" +
@@ -87,6 +209,13 @@ public class ConsumerSettings {
                 ", retry_count:" + retry_count +
                 ", close_timeout_millis:" + close_timeout_millis +
                 ", consumer_tag_prefix:'" + consumer_tag_prefix + "'" +
+                ", ack_batch_size:" + ack_batch_size +
+                ", ack_flush_interval_millis:" + ack_flush_interval_millis +
+                ", direct_dispatch:" + direct_dispatch +
+                ", demand_driven:" + demand_driven +
+                ", min_pre_fetch_count:" + min_pre_fetch_count +
+                ", max_pre_fetch_count:" + max_pre_fetch_count +
+                ", unacked_warning_millis:" + unacked_warning_millis +
                 '}';
     }
 
@@ -99,6 +228,13 @@ public class ConsumerSettings {
         if (pre_fetch_count != that.pre_fetch_count) return false;
         if (retry_count != that.retry_count) return false;
         if (close_timeout_millis != that.close_timeout_millis) return false;
+        if (ack_batch_size != that.ack_batch_size) return false;
+        if (ack_flush_interval_millis != that.ack_flush_interval_millis) return false;
+        if (direct_dispatch != that.direct_dispatch) return false;
+        if (demand_driven != that.demand_driven) return false;
+        if (min_pre_fetch_count != that.min_pre_fetch_count) return false;
+        if (max_pre_fetch_count != that.max_pre_fetch_count) return false;
+        if (unacked_warning_millis != that.unacked_warning_millis) return false;
         return !(consumer_tag_prefix != null ? !consumer_tag_prefix.equals(that.consumer_tag_prefix) : that.consumer_tag_prefix != null);
 
     }
@@ -110,6 +246,13 @@ public class ConsumerSettings {
         result = 31 * result + retry_count;
         result = 31 * result + (int) (close_timeout_millis ^ (close_timeout_millis >>> 32));
         result = 31 * result + (consumer_tag_prefix != null ? consumer_tag_prefix.hashCode() : 0);
+        result = 31 * result + ack_batch_size;
+        result = 31 * result + (int) (ack_flush_interval_millis ^ (ack_flush_interval_millis >>> 32));
+        result = 31 * result + (direct_dispatch ? 1 : 0);
+        result = 31 * result + (demand_driven ? 1 : 0);
+        result = 31 * result + min_pre_fetch_count;
+        result = 31 * result + max_pre_fetch_count;
+        result = 31 * result + (int) (unacked_warning_millis ^ (unacked_warning_millis >>> 32));
         return result;
     }
 
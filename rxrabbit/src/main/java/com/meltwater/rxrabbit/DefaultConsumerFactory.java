@@ -3,9 +3,12 @@ package com.meltwater.rxrabbit;
 import com.meltwater.rxrabbit.impl.ConnectionRetryHandler;
 import com.meltwater.rxrabbit.impl.DefaultChannelFactory;
 import com.meltwater.rxrabbit.impl.SingleChannelConsumer;
+import com.meltwater.rxrabbit.util.AffinityKeyExtractor;
 import com.meltwater.rxrabbit.util.Logger;
+import com.meltwater.rxrabbit.util.PartitionTransformer;
 import rx.Observable;
 import rx.Scheduler;
+import rx.observables.GroupedObservable;
 import rx.schedulers.Schedulers;
 
 import java.util.ArrayList;
@@ -57,6 +60,22 @@ public class DefaultConsumerFactory implements ConsumerFactory {
         return createConsumer(queue, settings.getRetry_count());
     }
 
+    /**
+     * Every channel is batched on its own, so the messages in a batch are normally contiguous deliveries on one
+     * channel and acking the batch sends one multiple ack to the broker.
+     */
+    @Override
+    public Observable<MessageBatch> createBatchConsumer(String queue, int maxSize, long maxWaitMillis) {
+        assert maxSize>0;
+        assert maxWaitMillis>0;
+        SingleChannelConsumer consumer = createSingleChannelConsumer(queue, settings.getRetry_count());
+        List<Observable<MessageBatch>> consumers = new ArrayList<>();
+        for(int i=0; i<settings.getNum_channels(); i++){
+            consumers.add(consumer.consumeBatches(maxSize, maxWaitMillis));
+        }
+        return Observable.merge(consumers);
+    }
+
     @Override
     public Observable<Message> createConsumer(final String exchange, final String routingKey) {
         final ConnectionRetryHandler retryHandler = new ConnectionRetryHandler(settings.getBackoff_algorithm(), settings.getRetry_count());
@@ -87,30 +106,45 @@ public class DefaultConsumerFactory implements ConsumerFactory {
                 .retryWhen(retryHandler);
     }
 
+    /**
+     * The lanes are observed on the consumer observe on scheduler.
+     */
+    @Override
+    public Observable<GroupedObservable<Integer, Message>> createPartitionedConsumer(String queue, int lanes, AffinityKeyExtractor keyExtractor) {
+        return createConsumer(queue).compose(new PartitionTransformer(lanes, keyExtractor, consumerObserveOnScheduler));
+    }
+
     private ConsumeEventListener getConsumeEventListener() {
         return new NoopConsumeEventListener();
     }
 
     private Observable<Message> createConsumer(String queue, int reTryCount) {
+        SingleChannelConsumer consumer = createSingleChannelConsumer(queue, reTryCount);
+        List<Observable<Message>> consumers = new ArrayList<>();
+        for(int i=0; i<settings.getNum_channels(); i++){
+            consumers.add(consumer.consume());
+        }
+        return Observable.merge(consumers);
+    }
+
+    private SingleChannelConsumer createSingleChannelConsumer(String queue, int reTryCount) {
         log.infoWithParams("Creating consumer.",
                 "consumeChannels", settings.getNum_channels(),
                 "preFetch", settings.getPre_fetch_count(),
+                "ackBatchSize", settings.getAck_batch_size(),
+                "directDispatch", settings.isDirect_dispatch(),
+                "demandDriven", settings.isDemand_driven(),
+                "minPreFetch", settings.getMin_pre_fetch_count(),
+                "maxPreFetch", settings.getMax_pre_fetch_count(),
                 "consumeEventListener", consumeEventListener);
-        SingleChannelConsumer consumer = new SingleChannelConsumer(
+        return new SingleChannelConsumer(
                 channelFactory,
                 queue,
-                settings.getPre_fetch_count(),
                 settings.getConsumer_tag_prefix() + "-consumer",
                 reTryCount,
-                settings.getClose_timeout_millis(),
                 consumerObserveOnScheduler,
                 consumeEventListener,
-                settings.getBackoff_algorithm());
-        List<Observable<Message>> consumers = new ArrayList<>();
-        for(int i=0; i<settings.getNum_channels(); i++){
-            consumers.add(consumer.consume());
-        }
-        return Observable.merge(consumers);
+                settings);
     }
 
 }
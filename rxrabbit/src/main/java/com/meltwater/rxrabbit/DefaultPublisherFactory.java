@@ -1,7 +1,8 @@
 package com.meltwater.rxrabbit;
 
 import com.meltwater.rxrabbit.impl.DefaultChannelFactory;
-import com.meltwater.rxrabbit.impl.RoundRobinPublisher;
+import com.meltwater.rxrabbit.impl.KeyAffinityPublisher;
+import com.meltwater.rxrabbit.impl.LeastInFlightPublisher;
 import com.meltwater.rxrabbit.impl.SingleChannelPublisher;
 import com.meltwater.rxrabbit.util.Logger;
 import rx.Scheduler;
@@ -29,6 +30,8 @@ public class DefaultPublisherFactory implements PublisherFactory{
 
     private Scheduler observeOnScheduler = Schedulers.computation();
 
+    private PublishLatencyRecorder latencyRecorder = null;
+
     public DefaultPublisherFactory(ChannelFactory channelFactory, PublisherSettings settings) {
         assert settings!=null;
         assert channelFactory!=null;
@@ -48,14 +51,35 @@ public class DefaultPublisherFactory implements PublisherFactory{
         return this;
     }
 
+    /**
+     * Latencies are not recorded by default, as recording them adds a few clock reads per message and all the channels
+     * of the created publishers record into the same recorder.
+     *
+     * @param latencyRecorder where the publishers record the latencies of the publish stages, null to not record latencies
+     */
+    public DefaultPublisherFactory setLatencyRecorder(PublishLatencyRecorder latencyRecorder) {
+        this.latencyRecorder = latencyRecorder;
+        return this;
+    }
+
+    /**
+     * @return the recorder shared by all the publishers created by this factory, or null if latencies are not recorded
+     */
+    public PublishLatencyRecorder getLatencyRecorder() {
+        return latencyRecorder;
+    }
+
     @Override
     public RabbitPublisher createPublisher() {
         assert settings.getNum_channels()>0;
         log.infoWithParams("Creating publisher.",
                 "publishChannels", settings.getNum_channels(),
                 "publisherConfirms", settings.isPublisher_confirms(),
+                "maxInFlight", settings.getMax_in_flight(),
+                "keyAffinity", settings.getAffinity_key_extractor() != null,
+                "completionMode", settings.getCompletion_mode(),
                 "publishEventListener", publishEventListener);
-        List<RabbitPublisher> publishers = new ArrayList<>();
+        List<SingleChannelPublisher> publishers = new ArrayList<>();
         for(int i=0; i<settings.getNum_channels(); i++){
             publishers.add(new SingleChannelPublisher(
                     channelFactory,
@@ -66,9 +90,16 @@ public class DefaultPublisherFactory implements PublisherFactory{
                     settings.getPublish_timeout_secs(),
                     settings.getClose_timeout_millis(),
                     1,
-                    settings.getBackoff_algorithm()));
+                    settings.getBackoff_algorithm(),
+                    settings.getMax_in_flight(),
+                    settings.getMax_in_flight_bytes(),
+                    settings.getCompletion_mode(),
+                    latencyRecorder));
+        }
+        if (settings.getAffinity_key_extractor() != null) {
+            return new KeyAffinityPublisher(publishers, settings.getAffinity_key_extractor());
         }
-        return new RoundRobinPublisher(publishers);
+        return new LeastInFlightPublisher(publishers);
     }
 
     protected PublishEventListener getPublishEventListener() {
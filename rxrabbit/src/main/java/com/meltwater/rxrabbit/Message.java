@@ -49,6 +49,18 @@ public class Message {
         this.payload = payload;
     }
 
+    /**
+     * For messages that are their own {@link Acknowledger}, so no separate acknowledger object is needed per message.
+     *
+     * @throws ClassCastException if the sub class does not implement {@link Acknowledger}
+     */
+    protected Message(Envelope envelope, AMQP.BasicProperties basicProperties, byte[] payload) {
+        this.acknowledger = (Acknowledger) this;
+        this.envelope = envelope;
+        this.basicProperties = basicProperties;
+        this.payload = payload;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
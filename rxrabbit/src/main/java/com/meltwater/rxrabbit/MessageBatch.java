@@ -0,0 +1,55 @@
+package com.meltwater.rxrabbit;
+
+import java.util.List;
+
+/**
+ * A batch of {@link Message}s that is acked or rejected as a whole.
+ *
+ * When the messages come from a consumer created by {@link DefaultConsumerFactory} the whole batch is settled with
+ * one task on the ack thread, and a batch of contiguous deliveries on one channel is sent to the broker as one
+ * multiple ack (or nack).
+ *
+ * @see ConsumerFactory#createBatchConsumer(String, int, long)
+ */
+public class MessageBatch {
+
+    /**
+     * Acks or rejects all the messages in the batch.
+     *
+     * NOTE:
+     * The messages in the batch must not be acked or rejected one by one, an attempt to ack a message that
+     * is already acked is ignored.
+     */
+    public final Acknowledger acknowledger;
+
+    /**
+     * The messages in the order they were delivered.
+     */
+    public final List<Message> messages;
+
+    /**
+     * Creates a batch that is acked or rejected by acking or rejecting each message.
+     */
+    public MessageBatch(List<Message> messages) {
+        this(new Acknowledger() {
+            @Override
+            public void ack() {
+                messages.forEach(message -> message.acknowledger.ack());
+            }
+
+            @Override
+            public void reject() {
+                messages.forEach(message -> message.acknowledger.reject());
+            }
+        }, messages);
+    }
+
+    public MessageBatch(Acknowledger acknowledger, List<Message> messages) {
+        this.acknowledger = acknowledger;
+        this.messages = messages;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+}
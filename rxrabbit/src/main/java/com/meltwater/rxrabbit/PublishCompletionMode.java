@@ -0,0 +1,31 @@
+package com.meltwater.rxrabbit;
+
+import rx.Scheduler;
+
+/**
+ * Decides on which thread the {@link rx.Single} returned by a publish completes.
+ *
+ * @see PublisherSettings#withCompletionMode(PublishCompletionMode)
+ */
+public enum PublishCompletionMode {
+
+    /**
+     * Each publish is moved to the observe on {@link Scheduler} of the publisher factory before it completes.
+     * Slow subscribers can not delay the handling of other publish confirms, but every message costs an extra thread hop.
+     */
+    OBSERVE_ON,
+
+    /**
+     * Publishes complete directly on the thread that completes them, normally the thread handling publish confirms.
+     * Only use this if the subscribers do very little work, as all confirms of a publish channel are handled on one thread.
+     */
+    CONFIRM_THREAD,
+
+    /**
+     * All the publishes confirmed by one (possibly multiple) publish confirm are completed by one task
+     * on the observe on {@link Scheduler} of the publisher factory. Without publisher confirms the same is done for the
+     * publishes written by one task on the send thread. Failed publishes complete directly on the thread that
+     * detects the failure.
+     */
+    BATCHED
+}
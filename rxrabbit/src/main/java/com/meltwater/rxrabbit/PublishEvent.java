@@ -2,6 +2,12 @@ package com.meltwater.rxrabbit;
 
 import com.rabbitmq.client.AMQP;
 
+/**
+ * The message that a {@link PublishEventListener} is notified about.
+ *
+ * One event instance is used for the before publish notification of a publish attempt, and one for all the
+ * notifications after the message has been written to the channel.
+ */
 public class PublishEvent {
 
     public final Payload payload;
@@ -12,6 +18,9 @@ public class PublishEvent {
     public final boolean publisherConfirms;
     public final long createdAtTimestamp;
     public final long publishedAtTimestamp;
+    /**
+     * When the message was written to the channel, 0 if it has not been written yet
+     */
     public final long publishCompletedAtTimestamp;
 
     public PublishEvent(Payload payload,
@@ -0,0 +1,60 @@
+package com.meltwater.rxrabbit;
+
+import com.meltwater.rxrabbit.util.LatencyHistogram;
+
+/**
+ * Records how long the different stages of publishing a message take, in nanoseconds:
+ * <ul>
+ *     <li>scheduling - from when the publish is handed to the send thread until the send thread starts publishing it</li>
+ *     <li>write - the time spent in basicPublish writing the message to the channel</li>
+ *     <li>confirm - from when the message starts being written until the publish confirm for it has been handled</li>
+ * </ul>
+ *
+ * High scheduling latencies mean that the send thread of the publisher is the bottleneck, while high confirm latencies
+ * point at the broker or the network. The same recorder can be shared by all the channels of a publisher.
+ *
+ * @see DefaultPublisherFactory#setLatencyRecorder(PublishLatencyRecorder)
+ */
+public class PublishLatencyRecorder {
+
+    private final LatencyHistogram scheduling = new LatencyHistogram();
+    private final LatencyHistogram write = new LatencyHistogram();
+    private final LatencyHistogram confirm = new LatencyHistogram();
+
+    public void recordScheduling(long nanos) {
+        scheduling.record(nanos);
+    }
+
+    public void recordWrite(long nanos) {
+        write.record(nanos);
+    }
+
+    public void recordConfirm(long nanos) {
+        confirm.record(nanos);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(scheduling.snapshot(), write.snapshot(), confirm.snapshot());
+    }
+
+    public static class Snapshot {
+        public final LatencyHistogram.Snapshot scheduling;
+        public final LatencyHistogram.Snapshot write;
+        public final LatencyHistogram.Snapshot confirm;
+
+        Snapshot(LatencyHistogram.Snapshot scheduling, LatencyHistogram.Snapshot write, LatencyHistogram.Snapshot confirm) {
+            this.scheduling = scheduling;
+            this.write = write;
+            this.confirm = confirm;
+        }
+
+        @Override
+        public String toString() {
+            return "{" +
+                    "scheduling:" + scheduling +
+                    ", write:" + write +
+                    ", confirm:" + confirm +
+                    '}';
+        }
+    }
+}
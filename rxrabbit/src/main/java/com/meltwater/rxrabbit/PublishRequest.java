@@ -0,0 +1,33 @@
+package com.meltwater.rxrabbit;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * Holds everything needed to publish one message, so that several messages can be handed to a
+ * {@link RabbitPublisher} in one go.
+ *
+ * @see RabbitPublisher#call(java.util.List)
+ */
+public class PublishRequest {
+
+    public final Exchange exchange;
+    public final RoutingKey routingKey;
+    public final AMQP.BasicProperties basicProperties;
+    public final Payload payload;
+
+    public PublishRequest(Exchange exchange, RoutingKey routingKey, AMQP.BasicProperties basicProperties, Payload payload) {
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.basicProperties = basicProperties;
+        this.payload = payload;
+    }
+
+    @Override
+    public String toString() {
+        return "PublishRequest{" +
+                "exchange=" + exchange +
+                ", routingKey=" + routingKey +
+                ", payload=" + payload +
+                '}';
+    }
+}
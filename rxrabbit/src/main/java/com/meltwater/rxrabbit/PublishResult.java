@@ -0,0 +1,33 @@
+package com.meltwater.rxrabbit;
+
+/**
+ * The outcome of publishing a {@link PublishRequest} as part of a stream.
+ *
+ * @see RabbitPublisher#publishStream(rx.Observable)
+ */
+public class PublishResult {
+
+    public final PublishRequest request;
+
+    /**
+     * The error that made the publish fail after all re-tries, or null if the publish was successful
+     */
+    public final Throwable error;
+
+    public PublishResult(PublishRequest request, Throwable error) {
+        this.request = request;
+        this.error = error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return "PublishResult{" +
+                "request=" + request +
+                ", error=" + error +
+                '}';
+    }
+}
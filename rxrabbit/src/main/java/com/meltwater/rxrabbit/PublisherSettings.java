@@ -1,8 +1,11 @@
 package com.meltwater.rxrabbit;
 
+import com.meltwater.rxrabbit.util.AffinityKeyExtractor;
 import com.meltwater.rxrabbit.util.BackoffAlgorithm;
 import com.meltwater.rxrabbit.util.FibonacciBackoffAlgorithm;
 
+import java.util.Objects;
+
 public class PublisherSettings {
 
     public static final int RETRY_FOREVER = -1;
@@ -11,13 +14,19 @@ public class PublisherSettings {
     public static final int DEFAULT_NUM_CHANNELS = 1;
     public static final int DEFAULT_PUBLISH_TIMEOUT_SECS = 30;
     public static final int DEFAULT_CLOSE_TIMEOUT_MILLIS = 10_000;
+    public static final int UNLIMITED = 0;
+    public static final int DEFAULT_STREAM_MAX_IN_FLIGHT = 1024;
 
     private int num_channels            = DEFAULT_NUM_CHANNELS;
     private boolean publisher_confirms  = DEFAULT_PUBLISHER_CONFIRM;
     private int retry_count             = DEFAULT_RETRY_COUNT;
     private long publish_timeout_secs   = DEFAULT_PUBLISH_TIMEOUT_SECS;
     private long close_timeout_millis   = DEFAULT_CLOSE_TIMEOUT_MILLIS;
+    private int max_in_flight           = UNLIMITED; //per channel
+    private long max_in_flight_bytes    = UNLIMITED; //per channel
     private BackoffAlgorithm backoff_algorithm = new FibonacciBackoffAlgorithm();
+    private AffinityKeyExtractor affinity_key_extractor = null;
+    private PublishCompletionMode completion_mode = PublishCompletionMode.OBSERVE_ON;
 
     public int getNum_channels() {
         return num_channels;
@@ -43,6 +52,22 @@ public class PublisherSettings {
         return backoff_algorithm;
     }
 
+    public AffinityKeyExtractor getAffinity_key_extractor() {
+        return affinity_key_extractor;
+    }
+
+    public PublishCompletionMode getCompletion_mode() {
+        return completion_mode;
+    }
+
+    public int getMax_in_flight() {
+        return max_in_flight;
+    }
+
+    public long getMax_in_flight_bytes() {
+        return max_in_flight_bytes;
+    }
+
     public PublisherSettings withNumChannels(int num_channels) {
         assert num_channels>0;
         this.num_channels = num_channels;
@@ -75,6 +100,59 @@ public class PublisherSettings {
         return this;
     }
 
+    /**
+     * Limits the number of messages each publish channel can have in flight, that is published (or waiting for re-try)
+     * but not yet confirmed. When the limit is reached new publishes are delayed until earlier messages are confirmed,
+     * so a slow broker shows up as back pressure instead of as a growing backlog in memory.
+     *
+     * @param max_in_flight the max number of messages in flight per channel, {@link #UNLIMITED} for no limit
+     * @return this settings object
+     */
+    public PublisherSettings withMaxInFlight(int max_in_flight) {
+        assert max_in_flight >= UNLIMITED;
+        this.max_in_flight = max_in_flight;
+        return this;
+    }
+
+    /**
+     * Same as {@link #withMaxInFlight(int)} but limits the total payload size of the messages in flight.
+     *
+     * @param max_in_flight_bytes the max number of payload bytes in flight per channel, {@link #UNLIMITED} for no limit
+     * @return this settings object
+     */
+    public PublisherSettings withMaxInFlightBytes(long max_in_flight_bytes) {
+        assert max_in_flight_bytes >= UNLIMITED;
+        this.max_in_flight_bytes = max_in_flight_bytes;
+        return this;
+    }
+
+    /**
+     * Publishes all messages with the same key on the same channel instead of on the channel with the fewest messages
+     * in flight. The key is consistently hashed to one of the channels.
+     *
+     * The publishes for one key are done one at a time, a message is not published until the previous message with the
+     * same key has been confirmed or has finally failed. This keeps the order of the messages of a key even when a
+     * message is re-tried, but limits the throughput of a single key to one message per confirm round trip. With only a
+     * few distinct keys the total throughput is lower than that of a single channel without key affinity.
+     *
+     * @param affinity_key_extractor the key extractor, for example {@link AffinityKeyExtractor#ROUTING_KEY}, or null to not use key affinity
+     * @return this settings object
+     */
+    public PublisherSettings withAffinityKeyExtractor(AffinityKeyExtractor affinity_key_extractor) {
+        this.affinity_key_extractor = affinity_key_extractor;
+        return this;
+    }
+
+    /**
+     * @param completion_mode on which thread publishes complete, defaults to {@link PublishCompletionMode#OBSERVE_ON}
+     * @return this settings object
+     */
+    public PublisherSettings withCompletionMode(PublishCompletionMode completion_mode) {
+        assert completion_mode != null;
+        this.completion_mode = completion_mode;
+        return this;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -86,6 +164,10 @@ public class PublisherSettings {
         if (publisher_confirms != that.publisher_confirms) return false;
         if (retry_count != that.retry_count) return false;
         if (publish_timeout_secs != that.publish_timeout_secs) return false;
+        if (max_in_flight != that.max_in_flight) return false;
+        if (max_in_flight_bytes != that.max_in_flight_bytes) return false;
+        if (completion_mode != that.completion_mode) return false;
+        if (!Objects.equals(affinity_key_extractor, that.affinity_key_extractor)) return false;
         return close_timeout_millis == that.close_timeout_millis;
 
     }
@@ -97,6 +179,10 @@ public class PublisherSettings {
         result = 31 * result + retry_count;
         result = 31 * result + (int) (publish_timeout_secs ^ (publish_timeout_secs >>> 32));
         result = 31 * result + (int) (close_timeout_millis ^ (close_timeout_millis >>> 32));
+        result = 31 * result + max_in_flight;
+        result = 31 * result + (int) (max_in_flight_bytes ^ (max_in_flight_bytes >>> 32));
+        result = 31 * result + completion_mode.hashCode();
+        result = 31 * result + Objects.hashCode(affinity_key_extractor);
         return result;
     }
 
@@ -108,6 +194,10 @@ public class PublisherSettings {
                 ", retry_count:" + retry_count +
                 ", publish_timeout_secs:" + publish_timeout_secs +
                 ", close_timeout_millis:" + close_timeout_millis +
+                ", max_in_flight:" + max_in_flight +
+                ", max_in_flight_bytes:" + max_in_flight_bytes +
+                ", completion_mode:" + completion_mode +
+                ", affinity_key_extractor:" + affinity_key_extractor +
                 '}';
     }
 
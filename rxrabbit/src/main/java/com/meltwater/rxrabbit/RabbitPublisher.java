@@ -1,10 +1,13 @@
 package com.meltwater.rxrabbit;
 
+import com.meltwater.rxrabbit.util.PublishTransformer;
 import com.rabbitmq.client.AMQP;
+import rx.Observable;
 import rx.Single;
 import rx.functions.Func4;
 
 import java.io.Closeable;
+import java.util.List;
 
 /**
  * A publisher can publish amqp messages to an amqp exchange.
@@ -35,5 +38,41 @@ public interface RabbitPublisher extends Func4<Exchange, RoutingKey, AMQP.BasicP
     @Override
     Single<Void> call(Exchange exchange, RoutingKey routingKey, AMQP.BasicProperties basicProperties, Payload payload);
 
+    /**
+     * Publishes a batch of messages to one or more amqp exchanges.
+     *
+     * Implementations are encouraged to write the whole batch to the channel in one go, but the default implementation
+     * simply publishes the messages one by one using {@link #call(Exchange, RoutingKey, AMQP.BasicProperties, Payload)}.
+     *
+     * Each message is re-tried on its own, so a failure of one message does not cause the others to be published again.
+     *
+     * @param requests the messages to publish
+     *
+     * @return a {@link Single} object that will return a Void value when all messages in the batch were published successfully
+     * or the first exception encountered if some message could not be published.
+     */
+    default Single<Void> call(List<PublishRequest> requests) {
+        return Observable.from(requests)
+                .flatMap(r -> call(r.exchange, r.routingKey, r.basicProperties, r.payload).toObservable())
+                .lastOrDefault(null)
+                .toSingle();
+    }
+
+    /**
+     * Publishes a stream of messages and emits one {@link PublishResult} per message, in the same order as the messages.
+     *
+     * Messages are requested from the source observable only as earlier publishes complete, so at most
+     * {@link PublisherSettings#DEFAULT_STREAM_MAX_IN_FLIGHT} messages are in flight at the same time and back pressure from
+     * the subscriber is propagated upstream. A failed publish is reported as a failed result and does not terminate the stream.
+     *
+     * @see PublishTransformer
+     *
+     * @param requests the messages to publish
+     *
+     * @return an {@link Observable} of the publish results
+     */
+    default Observable<PublishResult> publishStream(Observable<PublishRequest> requests) {
+        return requests.compose(new PublishTransformer(this, PublisherSettings.DEFAULT_STREAM_MAX_IN_FLIGHT));
+    }
 
 }
@@ -0,0 +1,265 @@
+package com.meltwater.rxrabbit.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects acks and nacks for deliveries on one channel and sends them to the broker in as few frames as possible.
+ *
+ * The coalescer keeps track of the watermark, the highest delivery tag for which it and all lower tags have been
+ * sent to the broker. When flushing, the settled deliveries directly above the watermark are sent with one
+ * multiple ack (or nack) per run of equal outcomes. A delivery that has not been settled yet is a gap that a multiple
+ * ack must never cover, so settled deliveries above a gap are sent one by one. This keeps acks correct even
+ * when messages are acked out of order.
+ *
+ * The deliveries above the watermark are kept in a ring indexed by delivery tag. When one delivery is left un-acked
+ * while a lot of later deliveries are acked the ring only grows as long as it is densely used, after that the
+ * deliveries at the low end that have not been sent yet are moved to a sparse map of stragglers. This keeps the
+ * memory bounded by the number of outstanding deliveries instead of by the distance to the oldest one.
+ *
+ * Not thread safe, all methods must be called from the same thread (the ack thread of the consumer).
+ *
+ * @param <T> the value kept for each settled delivery and handed to the {@link Sender}
+ */
+public class AckCoalescer<T> {
+
+    public interface Sender<T> {
+        /**
+         * Sends one ack or nack frame to the broker.
+         *
+         * @param ack true for an ack, false for a nack
+         * @param deliveryTag the (highest) delivery tag to ack
+         * @param multiple true if all the deliveries up to and including deliveryTag are acked
+         * @param settled the settled deliveries covered by this frame, only valid during the call
+         */
+        void send(boolean ack, long deliveryTag, boolean multiple, List<T> settled);
+    }
+
+    private static final byte UNSETTLED = 0;
+    private static final byte ACK = 1;
+    private static final byte NACK = 2;
+    private static final byte SENT = 3;
+
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final int batchSize;
+    private final Sender<T> sender;
+    private final List<T> frame = new ArrayList<>();
+
+    private final TreeMap<Long, Straggler> stragglers = new TreeMap<>(); //the deliveries at or below base that have not been sent
+
+    private byte[] states;
+    private Object[] values;
+    private int mask;
+
+    private long watermark;
+    private long base; //the ring holds the deliveries above this tag
+    private long maxSettled;
+    private int pending = 0;
+
+    /**
+     * @param watermark the delivery tag that all earlier deliveries have been settled up to, normally the tag before the first delivery
+     * @param batchSize the number of pending acks and nacks that triggers a flush
+     * @param sender sends the actual frames
+     */
+    AckCoalescer(long watermark, int batchSize, Sender<T> sender) {
+        assert batchSize > 0;
+        this.watermark = watermark;
+        this.base = watermark;
+        this.maxSettled = watermark;
+        this.batchSize = batchSize;
+        this.sender = sender;
+        this.states = new byte[DEFAULT_CAPACITY];
+        this.values = new Object[DEFAULT_CAPACITY];
+        this.mask = DEFAULT_CAPACITY - 1;
+    }
+
+    /**
+     * Registers that a delivery has been acked or nacked, and flushes if there are now batch size pending deliveries.
+     */
+    void settle(long deliveryTag, boolean ack, T value) {
+        settleWithoutFlush(deliveryTag, ack, value);
+        if (pending >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Registers that a delivery has been acked or nacked without flushing, used when a whole batch of deliveries is
+     * settled at once and flushed afterwards.
+     */
+    void settleWithoutFlush(long deliveryTag, boolean ack, T value) {
+        if (deliveryTag <= watermark) {
+            //Should never happen as every delivery is only settled once, but never let it hold back other acks
+            sendSingle(ack, deliveryTag, value);
+            return;
+        }
+        if (deliveryTag <= base) {
+            final Straggler straggler = stragglers.get(deliveryTag);
+            if (straggler != null && straggler.state == UNSETTLED) {
+                straggler.state = ack ? ACK : NACK;
+                straggler.value = value;
+                pending++;
+            }
+            return;
+        }
+        ensureCapacity(deliveryTag);
+        final int index = (int) (deliveryTag & mask);
+        if (states[index] != UNSETTLED) {
+            return;
+        }
+        states[index] = ack ? ACK : NACK;
+        values[index] = value;
+        pending++;
+        if (deliveryTag > maxSettled) {
+            maxSettled = deliveryTag;
+        }
+    }
+
+    /**
+     * @return the number of settled deliveries that have not been sent to the broker yet
+     */
+    int getPending() {
+        return pending;
+    }
+
+    @SuppressWarnings("unchecked")
+    void flush() {
+        //Runs of settled deliveries directly above the watermark are sent with one (multiple) frame per run
+        while (watermark < maxSettled && state(watermark + 1) != UNSETTLED) {
+            byte outcome = UNSETTLED;
+            long last = watermark;
+            long tag = watermark + 1;
+            frame.clear();
+            for (; tag <= maxSettled; tag = next(tag)) {
+                final byte state = state(tag);
+                if (state == UNSETTLED || (state != SENT && outcome != UNSETTLED && state != outcome)) {
+                    break;
+                }
+                if (state != SENT) {
+                    outcome = state;
+                    frame.add((T) value(tag));
+                    last = tag;
+                }
+            }
+            stragglers.headMap(tag).clear();
+            for (long t = Math.max(watermark, base) + 1; t < tag; t++) {
+                states[(int) (t & mask)] = UNSETTLED;
+                values[(int) (t & mask)] = null;
+            }
+            watermark = tag - 1;
+            base = Math.max(base, watermark);
+            if (!frame.isEmpty()) {
+                pending -= frame.size();
+                sender.send(outcome == ACK, last, frame.size() > 1, frame);
+            }
+        }
+        //Deliveries above a gap can only be sent one by one
+        final Iterator<Map.Entry<Long, Straggler>> it = stragglers.entrySet().iterator();
+        while (pending > 0 && it.hasNext()) {
+            final Map.Entry<Long, Straggler> entry = it.next();
+            final long tag = entry.getKey();
+            final Straggler straggler = entry.getValue();
+            if (straggler.state == ACK || straggler.state == NACK) {
+                it.remove();
+                pending--;
+                sendSingle(straggler.state == ACK, tag, (T) straggler.value);
+            }
+        }
+        for (long tag = base + 1; pending > 0 && tag <= maxSettled; tag++) {
+            final int index = (int) (tag & mask);
+            final byte state = states[index];
+            if (state == ACK || state == NACK) {
+                states[index] = SENT;
+                final T value = (T) values[index];
+                values[index] = null;
+                pending--;
+                sendSingle(state == ACK, tag, value);
+            }
+        }
+        frame.clear();
+    }
+
+    private byte state(long deliveryTag) {
+        if (deliveryTag <= base) {
+            final Straggler straggler = stragglers.get(deliveryTag);
+            return straggler == null ? SENT : straggler.state;
+        }
+        return states[(int) (deliveryTag & mask)];
+    }
+
+    private Object value(long deliveryTag) {
+        return deliveryTag <= base ? stragglers.get(deliveryTag).value : values[(int) (deliveryTag & mask)];
+    }
+
+    /**
+     * @return the next delivery tag that may not have been sent, skipping over the sent deliveries below base
+     */
+    private long next(long deliveryTag) {
+        if (deliveryTag >= base) {
+            return deliveryTag + 1;
+        }
+        final Long straggler = stragglers.higherKey(deliveryTag);
+        return straggler == null ? base + 1 : straggler;
+    }
+
+    private void sendSingle(boolean ack, long deliveryTag, T value) {
+        frame.clear();
+        frame.add(value);
+        sender.send(ack, deliveryTag, false, frame);
+    }
+
+    private void ensureCapacity(long deliveryTag) {
+        if (deliveryTag - base <= states.length) {
+            return;
+        }
+        int live = 0;
+        for (long tag = base + 1; tag <= maxSettled; tag++) {
+            if (states[(int) (tag & mask)] != SENT) {
+                live++;
+            }
+        }
+        if (live >= states.length / 2 && states.length < MAX_CAPACITY && deliveryTag - base <= states.length * 2L) {
+            resize(states.length * 2);
+        } else {
+            //The ring is mostly holding sent deliveries, so move the rest of its low end to the stragglers
+            final long newBase = deliveryTag - states.length / 2;
+            for (long tag = base + 1; tag <= newBase; tag++) {
+                final int index = (int) (tag & mask);
+                if (states[index] != SENT) {
+                    stragglers.put(tag, new Straggler(states[index], values[index]));
+                }
+                states[index] = UNSETTLED;
+                values[index] = null;
+            }
+            base = newBase;
+        }
+    }
+
+    private void resize(int capacity) {
+        final byte[] newStates = new byte[capacity];
+        final Object[] newValues = new Object[capacity];
+        final int newMask = capacity - 1;
+        for (long tag = base + 1; tag <= maxSettled; tag++) {
+            newStates[(int) (tag & newMask)] = states[(int) (tag & mask)];
+            newValues[(int) (tag & newMask)] = values[(int) (tag & mask)];
+        }
+        states = newStates;
+        values = newValues;
+        mask = newMask;
+    }
+
+    private static class Straggler {
+        byte state;
+        Object value;
+
+        Straggler(byte state, Object value) {
+            this.state = state;
+            this.value = value;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.meltwater.rxrabbit.impl;
 
 import com.google.common.collect.Collections2;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.meltwater.rxrabbit.AdminChannel;
 import com.meltwater.rxrabbit.BrokerAddresses;
 import com.meltwater.rxrabbit.ChannelFactory;
@@ -16,41 +17,74 @@ import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.GetResponse;
-import com.rabbitmq.client.impl.AMQConnection;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.FrameHandlerFactory;
+import com.rabbitmq.client.impl.NetworkConnection;
+import com.rabbitmq.client.impl.nio.NioParams;
+import com.rabbitmq.client.impl.nio.SocketChannelFrameHandlerFactory;
+import rx.Scheduler;
 import rx.functions.Func2;
+import rx.schedulers.Schedulers;
 
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DefaultChannelFactory implements ChannelFactory {
 
     private static final Logger log = new Logger(DefaultChannelFactory.class);
 
-    private final Map<ChannelType, ConnectionInfo> conToChannel = new HashMap<>();
+    private final Map<ChannelType, ConnectionPool> connectionPools = new EnumMap<>(ChannelType.class);
 
     private final BrokerAddresses addresses;
     private final ConnectionSettings settings;
 
+    private final ConcurrentLinkedQueue<PublishChannelImpl> spareChannels = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean replenishing = new AtomicBoolean(false);
+    private final Scheduler.Worker spareWorker;
+    private volatile boolean closed = false;
+
+    private final Map<Boolean, FrameHandlerFactory> nioFrameHandlerFactories = new HashMap<>();
+
     public DefaultChannelFactory(BrokerAddresses addresses, ConnectionSettings settings) {
         assert addresses!=null;
         assert settings!=null;
         assert !addresses.getAddresses().isEmpty();
         this.addresses = addresses;
         this.settings = settings;
+        for (ChannelType type : ChannelType.values()) {
+            connectionPools.put(type, new ConnectionPool(type, type == ChannelType.admin ? 1 : settings.getConnections_per_type()));
+        }
+        if (settings.getPublish_channel_spares() > 0) {
+            this.spareWorker = Schedulers.io().createWorker();
+            spareWorker.schedule(() -> Thread.currentThread().setName("rabbit-spare-channels"));
+            replenishSpareChannels();
+        } else {
+            this.spareWorker = null;
+        }
     }
 
-    public synchronized List<ConnectionInfo> getOpenConnections(){
-        return new ArrayList<>(Collections2.filter(conToChannel.values(), c -> c.connection.isOpen()));
+    public List<ConnectionInfo> getOpenConnections(){
+        List<ConnectionInfo> open = new ArrayList<>();
+        for (ConnectionPool pool : connectionPools.values()) {
+            open.addAll(Collections2.filter(pool.getConnections(), c -> c.connection.isOpen()));
+        }
+        return open;
     }
 
     @Override
@@ -58,7 +92,8 @@ public class DefaultChannelFactory implements ChannelFactory {
         assert queue!=null;
         return (ConsumeChannel)createChannel(
                 ChannelType.consume,
-                (hashCode, innerChannel) -> new ConsumeChannelImpl(innerChannel, queue, hashCode, ChannelType.consume, DefaultChannelFactory.this)
+                (hashCode, innerChannel) -> new ConsumeChannelImpl(innerChannel, queue, hashCode, ChannelType.consume, DefaultChannelFactory.this),
+                false
         );
     }
 
@@ -74,52 +109,141 @@ public class DefaultChannelFactory implements ChannelFactory {
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
-                }
+                },
+                false
         );
     }
 
     @Override
     public PublishChannel createPublishChannel()throws IOException {
-        return (PublishChannel)createChannel(
+        if (spareWorker != null && !closed) {
+            final ConnectionPool pool = connectionPools.get(ChannelType.publish);
+            PublishChannelImpl spare;
+            while ((spare = spareChannels.poll()) != null) {
+                if (spare.isOpen() && pool.useSpare(spare)) {
+                    replenishSpareChannels();
+                    return spare;
+                }
+                closeChannel(spare);
+            }
+            replenishSpareChannels();
+        }
+        return openPublishChannel(false);
+    }
+
+    private PublishChannelImpl openPublishChannel(boolean spare) throws IOException {
+        return (PublishChannelImpl)createChannel(
                 ChannelType.publish,
-                (hashCode, innerChannel) -> new PublishChannelImpl(innerChannel, hashCode, ChannelType.publish, DefaultChannelFactory.this)
+                (hashCode, innerChannel) -> new PublishChannelImpl(innerChannel, hashCode, ChannelType.publish, DefaultChannelFactory.this),
+                spare
         );
     }
 
+    /**
+     * Opens spare publish channels in the background until there are publish_channel_spares of them.
+     * If opening a channel fails the spares are replenished again the next time a publish channel is created.
+     */
+    private void replenishSpareChannels() {
+        if (closed || !replenishing.compareAndSet(false, true)) {
+            return;
+        }
+        spareWorker.schedule(() -> {
+            boolean failed = false;
+            try {
+                while (!closed && spareChannels.size() < settings.getPublish_channel_spares()) {
+                    spareChannels.add(openPublishChannel(true));
+                }
+            } catch (Exception e) {
+                failed = true;
+                log.warnWithParams("Failed to open spare publish channel.",
+                        "error", e,
+                        "spareChannels", spareChannels.size());
+            } finally {
+                replenishing.set(false);
+            }
+            if (closed) {
+                closeSpareChannels();
+            } else if (!failed && spareChannels.size() < settings.getPublish_channel_spares()) {
+                //a spare was handed out after the loop checked the size but before the flag was cleared
+                replenishSpareChannels();
+            }
+        });
+    }
+
+    /**
+     * Stops replenishing the spare publish channels and closes them, together with any connection that has no other
+     * channels. Channels already handed out are not affected, and new channels are opened on demand.
+     */
+    public void close() {
+        closed = true;
+        if (spareWorker != null) {
+            spareWorker.unsubscribe();
+            closeSpareChannels();
+        }
+    }
+
+    private void closeSpareChannels() {
+        PublishChannelImpl spare;
+        while ((spare = spareChannels.poll()) != null) {
+            closeChannel(spare);
+        }
+    }
+
     @Override
     public AdminChannel createAdminChannel() throws IOException {
         return (AdminChannel)createChannel(
                 ChannelType.admin,
-                (hashCode, innerChannel) -> new AdminChannelImpl(innerChannel, hashCode, ChannelType.admin, DefaultChannelFactory.this)
+                (hashCode, innerChannel) -> new AdminChannelImpl(innerChannel, hashCode, ChannelType.admin, DefaultChannelFactory.this),
+                false
         );
     }
 
-    public synchronized void closeChannelWitError(ChannelImpl channel) {
+    /**
+     * A channel level error, like publishing to an exchange that does not exist, only closes the failed channel.
+     * The other channels on the same connection are only closed if the connection is broken as well.
+     */
+    public void closeChannelWitError(ChannelImpl channel) {
         if(channel == null){
             //TODO not covered in tests still valid?
             return;
         }
-        final ConnectionInfo connectionInfo = conToChannel.get(channel.channelType);
+        final ConnectionInfo connectionInfo = connectionPools.get(channel.channelType).find(channel);
         if (connectionInfo == null) {
             return;
         }
-        if(!connectionInfo.channels.isEmpty()){
-            for (ChannelImpl ch : new ArrayList<>(connectionInfo.channels)) {
-                closeChannel(ch);
-            }
+        if (!isConnectionError(connectionInfo.connection, channel.delegate)) {
+            closeChannel(channel);
+            return;
+        }
+        log.warnWithParams("Connection error, closing all channels on the connection.",
+                "channelType", channel.channelType,
+                "channelNr", channel.getChannelNumber(),
+                "closeReason", channel.delegate.getCloseReason(),
+                "numChannels", connectionInfo.channels.size());
+        for (ChannelImpl ch : new ArrayList<>(connectionInfo.channels)) {
+            closeChannel(ch);
+        }
+    }
+
+    static boolean isConnectionError(Connection connection, Channel channel) {
+        if (!connection.isOpen()) {
+            return true;
         }
+        final ShutdownSignalException closeReason = channel.getCloseReason();
+        return closeReason != null && closeReason.isHardError();
     }
 
-    public synchronized void closeChannel(ChannelImpl channel) {
+    public void closeChannel(ChannelImpl channel) {
         if(channel == null){
             //TODO not covered in tests still valid?
             return;
         }
-        ConnectionInfo info = conToChannel.get(channel.channelType);
+        final ConnectionPool pool = connectionPools.get(channel.channelType);
+        ConnectionInfo info = pool.find(channel);
         if(info==null){
             return;
         }
-        info.channels.remove(channel);
+        final boolean lastChannel = pool.removeChannel(info, channel);
         final boolean channelIsOpen = channel.isOpen();
         if(channelIsOpen){
             try {
@@ -136,71 +260,63 @@ public class DefaultChannelFactory implements ChannelFactory {
                 "channelNr", channel.getChannelNumber(),
                 "wasOpen", channelIsOpen);
 
-        Set<ChannelType> connectionsToClose = new HashSet<>();
-        for (Map.Entry<ChannelType,ConnectionInfo> c : conToChannel.entrySet()) {
-            if (c.getValue().channels.isEmpty()){
-                connectionsToClose.add(c.getKey());
-            }
+        if (lastChannel) {
+            closeConnection(info);
         }
-        for(ChannelType type: connectionsToClose){
-            final ConnectionInfo connectionInfo = conToChannel.remove(type);
-            final Connection connection = connectionInfo.connection;
-            boolean connectionIsOpen = connection.isOpen();
-            if(connectionIsOpen){
-                try {
-                    connection.close();
-                } catch (Exception e) {
-                    log.warnWithParams("Unexpected error when closing connection.", e,
-                            "wasOpen", connectionIsOpen,
-                            "isOpen", connection.isOpen());
-                }
+    }
+
+    private void closeConnection(ConnectionInfo connectionInfo) {
+        final Connection connection = connectionInfo.connection;
+        boolean connectionIsOpen = connection.isOpen();
+        if(connectionIsOpen){
+            try {
+                connection.close();
+            } catch (Exception e) {
+                log.warnWithParams("Unexpected error when closing connection.", e,
+                        "wasOpen", connectionIsOpen,
+                        "isOpen", connection.isOpen());
             }
-            log.infoWithParams("Closed and disposed "+connectionInfo.type+" connection.",
-                    "connectionType", connectionInfo.type,
-                    "properties", connectionInfo.clientProperties,
-                    "wasOpen", connectionIsOpen);
         }
+        log.infoWithParams("Closed and disposed "+connectionInfo.type+" connection.",
+                "connectionType", connectionInfo.type,
+                "properties", connectionInfo.clientProperties,
+                "wasOpen", connectionIsOpen);
     }
 
-    private synchronized ChannelWrapper createChannel(ChannelType type, Func2<Integer, Channel, ChannelImpl> channelFunction) throws IOException {
-        Channel innerChannel = getOrCreateConnection(type).createChannel();
-        ConnectionInfo info = conToChannel.get(type);
-        ChannelImpl channel = channelFunction.call(innerChannel.hashCode(), innerChannel);
-        info.channels.add(channel);
+    private ChannelWrapper createChannel(ChannelType type, Func2<Integer, Channel, ChannelImpl> channelFunction, boolean spare) throws IOException {
+        final ConnectionPool pool = connectionPools.get(type);
+        final ConnectionInfo info = pool.acquire();
+        ChannelImpl channel = null;
+        try {
+            Channel innerChannel = info.connection.createChannel();
+            channel = channelFunction.call(innerChannel.hashCode(), innerChannel);
+        } finally {
+            if (pool.release(info, channel, spare)) {
+                closeConnection(info);
+            }
+        }
         log.infoWithParams("Successfully created "+type+" channel.",
                 "channel", channel,
                 "properties", info.clientProperties);
         return channel;
     }
 
-
-    private synchronized Connection getOrCreateConnection(ChannelType connectionType) throws IOException {
-        if (conToChannel.containsKey(connectionType)) {
-            if (conToChannel.get(connectionType).connection.isOpen()) {
-                return conToChannel.get(connectionType).connection;
-            }else{
-                //TODO not covered in tests
-                conToChannel.remove(connectionType);
-            }
-        }
-
-        return createConnection(connectionType);
-    }
-
-    private synchronized Connection createConnection(ChannelType connectionType) throws ConnectionFailureException {
+    private ConnectionInfo createConnection(ChannelType connectionType) throws ConnectionFailureException {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
         Date startTime = new Date();
         sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-        settings.getClient_properties().put("connection_type", connectionType.toString());
-        settings.getClient_properties().put("connect_time", sdf.format(startTime)+"Z");
+        //Connections can be created concurrently, so each one gets its own copy of the client properties
+        final Map<String, Object> clientProperties = new HashMap<>(settings.getClient_properties());
+        clientProperties.put("connection_type", connectionType.toString());
+        clientProperties.put("connect_time", sdf.format(startTime)+"Z");
 
-        ConnectionFactory cf = new ConnectionFactory();
+        SharedNioConnectionFactory cf = new SharedNioConnectionFactory();
         cf.setRequestedHeartbeat(settings.getHeartbeat());
         cf.setConnectionTimeout(settings.getConnection_timeout_millis());
         cf.setShutdownTimeout(settings.getShutdown_timeout_millis());
         cf.setRequestedFrameMax(settings.getFrame_max());
         cf.setHandshakeTimeout(settings.getHandshake_timeout_millis());
-        cf.setClientProperties((Map)settings.getClient_properties());
+        cf.setClientProperties(clientProperties);
         //cf.setSocketConfigurator(); NOTE is this worth investigating??
         cf.setRequestedChannelMax(0);//Hard coded ..
         cf.setAutomaticRecoveryEnabled(false);//Hard coded ..
@@ -219,10 +335,13 @@ public class DefaultChannelFactory implements ChannelFactory {
                     cf.useSslProtocol();
                     cf.setSocketFactory(SSLSocketFactory.getDefault()); //Because rabbit uses NoopTrustStore by default...
                 }
+                if (settings.isNio()) {
+                    cf.nioFrameHandlerFactory = getNioFrameHandlerFactory(address.scheme.toLowerCase().equals("amqps"));
+                }
                 log.infoWithParams("Creating "+connectionType+" connection to broker ...",
                         "address", address.toString(),
                         "settings", settings.toString());
-                connection = cf.newConnection();
+                connection = newConnection(cf);
                 boolean isOpen = connection.isOpen();
                 if(!isOpen){
                     continue;
@@ -239,20 +358,229 @@ public class DefaultChannelFactory implements ChannelFactory {
             throw new ConnectionFailureException(cf, lastException);
         }
 
-        conToChannel.put(connectionType,
-                new ConnectionInfo(
-                        connection,
-                        new ArrayList<ChannelImpl>(),
-                        settings.getClient_properties(),
-                        connectionType)
-        );
+        final ConnectionInfo info = new ConnectionInfo(
+                connection,
+                new CopyOnWriteArrayList<ChannelImpl>(),
+                clientProperties,
+                connectionType);
         log.infoWithParams("Successfully created "+connectionType+" connection to broker.",
                 "address", addresses.get(0).toString(),
-                "localPort", ((AMQConnection) connection).getLocalPort(),
+                "localPort", localPort(connection),
                 "settings", settings.toString());
 
-        return connection;
+        return info;
+
+    }
+
+    /**
+     * Opens a connection with the given settings, can be overridden to open connections without a broker.
+     */
+    protected Connection newConnection(ConnectionFactory connectionFactory) throws IOException, TimeoutException {
+        return connectionFactory.newConnection();
+    }
 
+    static int localPort(Connection connection) {
+        return connection instanceof NetworkConnection ? ((NetworkConnection) connection).getLocalPort() : -1;
+    }
+
+    /**
+     * Returns the NIO frame handler factory shared by all connections of this channel factory, so that they share the
+     * same IO threads. Connections with and without TLS need separate factories.
+     */
+    private FrameHandlerFactory getNioFrameHandlerFactory(boolean ssl) throws IOException, NoSuchAlgorithmException {
+        synchronized (nioFrameHandlerFactories) {
+            FrameHandlerFactory factory = nioFrameHandlerFactories.get(ssl);
+            if (factory == null) {
+                NioParams nioParams = new NioParams()
+                        .setNbIoThreads(settings.getNio_io_threads())
+                        .setWriteQueueCapacity(settings.getNio_write_queue_capacity())
+                        .setReadByteBufferSize(settings.getNio_read_byte_buffer_size())
+                        .setWriteByteBufferSize(settings.getNio_write_byte_buffer_size())
+                        .setThreadFactory(new ThreadFactoryBuilder().setNameFormat("rabbit-nio-%d").build());
+                factory = new SocketChannelFrameHandlerFactory(
+                        settings.getConnection_timeout_millis(),
+                        nioParams,
+                        ssl,
+                        ssl ? SSLContext.getDefault() : null); //Because rabbit uses NoopTrustStore by default...
+                nioFrameHandlerFactories.put(ssl, factory);
+            }
+            return factory;
+        }
+    }
+
+    /**
+     * Uses the shared NIO frame handler factory when one is set, the rabbit connection factory creates a new one
+     * (with its own IO threads) per connection factory.
+     */
+    private static class SharedNioConnectionFactory extends ConnectionFactory {
+        private FrameHandlerFactory nioFrameHandlerFactory;
+
+        @Override
+        protected synchronized FrameHandlerFactory createFrameHandlerFactory() throws IOException {
+            if (nioFrameHandlerFactory != null) {
+                return nioFrameHandlerFactory;
+            }
+            return super.createFrameHandlerFactory();
+        }
+    }
+
+    /**
+     * The connections of one channel type.
+     *
+     * The pool monitor is only held while a connection is picked or a channel is added or removed, never while a
+     * connection or channel is opened or closed. Each connection is opened once, by the first caller that needs it,
+     * and every other caller that picks it waits for the same future. So a slow connection attempt only blocks the
+     * callers waiting for that connection.
+     */
+    private class ConnectionPool {
+        private final ChannelType type;
+        private final int maxConnections;
+        private final List<CompletableFuture<ConnectionInfo>> connections = new ArrayList<>();
+
+        ConnectionPool(ChannelType type, int maxConnections) {
+            this.type = type;
+            this.maxConnections = maxConnections;
+        }
+
+        /**
+         * Opens a new connection until there are maxConnections open connections, and after that returns the
+         * connection with the fewest channels. The returned connection is reserved, and is not closed until
+         * {@link #release(ConnectionInfo, ChannelImpl, boolean)} is called.
+         */
+        ConnectionInfo acquire() throws IOException {
+            while (true) {
+                final CompletableFuture<ConnectionInfo> future;
+                boolean connect = false;
+                synchronized (this) {
+                    connections.removeIf(f -> f.isDone() && (f.isCompletedExceptionally() || !f.join().connection.isOpen()));
+                    if (connections.size() < maxConnections) {
+                        future = new CompletableFuture<>();
+                        connections.add(future);
+                        connect = true;
+                    } else {
+                        future = leastUsed();
+                    }
+                }
+                if (connect) {
+                    try {
+                        future.complete(createConnection(type));
+                    } catch (Throwable e) {
+                        //every caller waiting for the connection must fail, whatever the error
+                        future.completeExceptionally(e);
+                        synchronized (this) {
+                            connections.remove(future);
+                        }
+                        throw e;
+                    }
+                }
+                final ConnectionInfo info = await(future);
+                synchronized (this) {
+                    //The connection might have been closed while we were waiting for it, if so pick another one
+                    if (connections.contains(future) && info.connection.isOpen()) {
+                        info.reserved++;
+                        return info;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds the channel created on an acquired connection.
+         *
+         * @param channel the created channel, null if it could not be created
+         * @param spare if the channel is a spare, spares do not keep the connection open once its other channels are closed
+         * @return true if the connection has no channels left and must be closed
+         */
+        synchronized boolean release(ConnectionInfo info, ChannelImpl channel, boolean spare) {
+            info.reserved--;
+            if (channel != null) {
+                (spare ? info.spares : info.channels).add(channel);
+                return false;
+            }
+            return info.spares.isEmpty() && removeIfUnused(info);
+        }
+
+        /**
+         * Turns a spare channel into a used channel of its connection.
+         *
+         * @return false if the connection of the spare has already been closed
+         */
+        synchronized boolean useSpare(ChannelImpl channel) {
+            for (ConnectionInfo info : getConnections()) {
+                if (info.spares.remove(channel)) {
+                    info.channels.add(channel);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return true if the connection has no channels left and must be closed
+         */
+        synchronized boolean removeChannel(ConnectionInfo info, ChannelImpl channel) {
+            if (info.spares.remove(channel)) {
+                return info.spares.isEmpty() && removeIfUnused(info);
+            }
+            return info.channels.remove(channel) && removeIfUnused(info);
+        }
+
+        synchronized ConnectionInfo find(ChannelImpl channel) {
+            for (ConnectionInfo info : getConnections()) {
+                if (info.channels.contains(channel) || info.spares.contains(channel)) {
+                    return info;
+                }
+            }
+            return null;
+        }
+
+        synchronized List<ConnectionInfo> getConnections() {
+            List<ConnectionInfo> infos = new ArrayList<>();
+            for (CompletableFuture<ConnectionInfo> future : connections) {
+                if (future.isDone() && !future.isCompletedExceptionally()) {
+                    infos.add(future.join());
+                }
+            }
+            return infos;
+        }
+
+        private boolean removeIfUnused(ConnectionInfo info) {
+            if (!info.channels.isEmpty() || info.reserved > 0) {
+                return false;
+            }
+            return connections.removeIf(f -> f.isDone() && !f.isCompletedExceptionally() && f.join() == info);
+        }
+
+        private CompletableFuture<ConnectionInfo> leastUsed() {
+            CompletableFuture<ConnectionInfo> leastUsed = connections.get(0);
+            int leastChannels = Integer.MAX_VALUE;
+            for (CompletableFuture<ConnectionInfo> future : connections) {
+                //Connections that are still being opened are only picked if no connection is open yet
+                if (future.isDone()) {
+                    final ConnectionInfo info = future.join();
+                    final int numChannels = info.channels.size() + info.reserved;
+                    if (numChannels < leastChannels) {
+                        leastChannels = numChannels;
+                        leastUsed = future;
+                    }
+                }
+            }
+            return leastUsed;
+        }
+
+        private ConnectionInfo await(CompletableFuture<ConnectionInfo> future) throws IOException {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
     }
 
     public static class ConnectionInfo {
@@ -260,6 +588,8 @@ public class DefaultChannelFactory implements ChannelFactory {
         final List<ChannelImpl> channels;
         final Map<String, Object> clientProperties;
         final ChannelType type;
+        final List<ChannelImpl> spares = new CopyOnWriteArrayList<>(); //not counted as channels of the connection
+        int reserved = 0; //guarded by the connection pool
         ConnectionInfo(Connection connection, List<ChannelImpl> channels, Map<String,Object> clientProperties, ChannelType type) {
             this.connection = connection;
             this.channels = channels;
@@ -324,7 +654,7 @@ public class DefaultChannelFactory implements ChannelFactory {
             return "{" +
                     "channelType=" + channelType +
                     ", channelNo=" + delegate.getChannelNumber() +
-                    ", localPort=" + ((AMQConnection) delegate.getConnection()).getLocalPort() +
+                    ", localPort=" + localPort(delegate.getConnection()) +
                     '}';
         }
     }
@@ -502,6 +832,11 @@ public class DefaultChannelFactory implements ChannelFactory {
         public void basicQos(int prefetchCount) throws IOException {
             delegate.basicQos(prefetchCount);
         }
+
+        @Override
+        public void basicQos(int prefetchCount, boolean global) throws IOException {
+            delegate.basicQos(prefetchCount, global);
+        }
     }
 
     enum ChannelType {
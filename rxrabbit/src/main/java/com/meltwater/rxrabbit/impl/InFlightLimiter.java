@@ -0,0 +1,133 @@
+package com.meltwater.rxrabbit.impl;
+
+import rx.functions.Action0;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Keeps track of the messages (and their payload bytes) that a publisher has in flight, from the moment a publish
+ * is requested until it is confirmed or finally fails.
+ *
+ * If limits are given then publishes that do not fit are queued and started in order as earlier messages complete.
+ * A full window therefore shows up as delayed publishes for the caller and not as errors.
+ *
+ * A publish is always let through when nothing else is in flight, so a batch or payload that is larger than the limits
+ * can still be published.
+ */
+class InFlightLimiter {
+
+    private final int maxMessages;
+    private final long maxBytes;
+
+    private final Queue<Waiting> waiting = new ArrayDeque<>();
+    //written while holding the lock, volatile so that the load can be read without taking the lock
+    private volatile int messages = 0;
+    private volatile int waitingMessages = 0;
+    private long bytes = 0;
+
+    /**
+     * @param maxMessages the max number of messages in flight, 0 or a negative number for no limit
+     * @param maxBytes the max number of payload bytes in flight, 0 or a negative number for no limit
+     */
+    InFlightLimiter(int maxMessages, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Runs the action directly if the messages fit in the window, otherwise when enough messages have been released.
+     */
+    void acquire(int nrMessages, long nrBytes, Action0 onAcquired) {
+        synchronized (this) {
+            if (!waiting.isEmpty() || !fits(nrMessages, nrBytes)) {
+                waiting.add(new Waiting(nrMessages, nrBytes, onAcquired));
+                waitingMessages += nrMessages;
+                return;
+            }
+            messages += nrMessages;
+            bytes += nrBytes;
+        }
+        onAcquired.call();
+    }
+
+    void release(int nrMessages, long nrBytes) {
+        List<Action0> toStart = null;
+        synchronized (this) {
+            messages -= nrMessages;
+            bytes -= nrBytes;
+            while (!waiting.isEmpty() && fits(waiting.peek().messages, waiting.peek().bytes)) {
+                Waiting next = waiting.poll();
+                waitingMessages -= next.messages;
+                messages += next.messages;
+                bytes += next.bytes;
+                if (toStart == null) {
+                    toStart = new ArrayList<>();
+                }
+                toStart.add(next.onAcquired);
+            }
+        }
+        if (toStart != null) {
+            for (Action0 action : toStart) {
+                action.call();
+            }
+        }
+    }
+
+    /**
+     * Starts all waiting publishes regardless of the limits, used when the publisher is closed
+     * so that the waiting publishes are failed instead of left hanging.
+     */
+    void startAllWaiting() {
+        List<Action0> toStart = new ArrayList<>();
+        synchronized (this) {
+            for (Waiting next : waiting) {
+                messages += next.messages;
+                bytes += next.bytes;
+                toStart.add(next.onAcquired);
+            }
+            waiting.clear();
+            waitingMessages = 0;
+        }
+        for (Action0 action : toStart) {
+            action.call();
+        }
+    }
+
+    int getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return the number of messages in flight plus the number of messages waiting to get into the window
+     */
+    int getLoad() {
+        return messages + waitingMessages;
+    }
+
+    synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    private boolean fits(int nrMessages, long nrBytes) {
+        if (messages == 0) {
+            return true;
+        }
+        return (maxMessages <= 0 || messages + nrMessages <= maxMessages)
+                && (maxBytes <= 0 || bytes + nrBytes <= maxBytes);
+    }
+
+    private static class Waiting {
+        final int messages;
+        final long bytes;
+        final Action0 onAcquired;
+
+        Waiting(int messages, long bytes, Action0 onAcquired) {
+            this.messages = messages;
+            this.bytes = bytes;
+            this.onAcquired = onAcquired;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.meltwater.rxrabbit.impl;
+
+import com.google.common.base.Strings;
+import com.meltwater.rxrabbit.Exchange;
+import com.meltwater.rxrabbit.Payload;
+import com.meltwater.rxrabbit.PublishRequest;
+import com.meltwater.rxrabbit.PublishResult;
+import com.meltwater.rxrabbit.RabbitPublisher;
+import com.meltwater.rxrabbit.RoutingKey;
+import com.meltwater.rxrabbit.util.AffinityKeyExtractor;
+import com.meltwater.rxrabbit.util.PublishTransformer;
+import com.rabbitmq.client.AMQP;
+import rx.Observable;
+import rx.Single;
+import rx.SingleSubscriber;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Publishes all messages with the same key on the same backing publisher, by consistently hashing the key to one
+ * of the publishers.
+ *
+ * Messages with the same key are published one at a time, in the order that they were given to this publisher.
+ * A message is only handed to the backing publisher when the previous message with the same key has been confirmed
+ * or has finally failed, so re-tries can not change the order of the messages of a key.
+ * Messages with different keys are published concurrently.
+ *
+ * This limits each key to one confirm round trip in flight. With only a few distinct keys, as is common with
+ * {@link AffinityKeyExtractor#ROUTING_KEY}, the throughput is therefore lower than that of a single channel without
+ * key affinity. Use a key with many distinct values when throughput matters.
+ */
+public class KeyAffinityPublisher implements RabbitPublisher {
+
+    private final List<? extends RabbitPublisher> backingPublishers;
+    private final AffinityKeyExtractor keyExtractor;
+    private final boolean singleChannelPublishers;
+
+    //A key is present while a message with that key is being published, the queue holds the messages waiting for it
+    private final ConcurrentHashMap<String, ArrayDeque<Runnable>> keyQueues = new ConcurrentHashMap<>();
+    //The keys whose next message is to be published by the publishNext loop running on this thread
+    private final ThreadLocal<ArrayDeque<String>> draining = new ThreadLocal<>();
+
+    public KeyAffinityPublisher(List<? extends RabbitPublisher> backingPublishers, AffinityKeyExtractor keyExtractor) {
+        assert !backingPublishers.isEmpty();
+        assert keyExtractor != null;
+        this.backingPublishers = backingPublishers;
+        this.keyExtractor = keyExtractor;
+        this.singleChannelPublishers = backingPublishers.stream().allMatch(p -> p instanceof SingleChannelPublisher);
+    }
+
+    @Override
+    public Single<Void> call(Exchange exchange, RoutingKey routingKey, AMQP.BasicProperties basicProperties, Payload payload) {
+        return publish(exchange, routingKey, basicProperties, payload, false);
+    }
+
+    /**
+     * When the backing publishers are {@link SingleChannelPublisher}s the results are moved to their observe on
+     * scheduler once for the whole stream instead of once per message, and the max in flight of the stream is the sum
+     * of the max in flight of the publishers.
+     */
+    @Override
+    public Observable<PublishResult> publishStream(Observable<PublishRequest> requests) {
+        if (!singleChannelPublishers) {
+            return RabbitPublisher.super.publishStream(requests);
+        }
+        final SingleChannelPublisher first = (SingleChannelPublisher) backingPublishers.get(0);
+        return first.observeResults(requests.compose(new PublishTransformer(
+                r -> publish(r.exchange, r.routingKey, r.basicProperties, r.payload, true),
+                SingleChannelPublisher.streamMaxInFlight(first.getMaxInFlight(), backingPublishers.size()))));
+    }
+
+    private Single<Void> publish(Exchange exchange, RoutingKey routingKey, AMQP.BasicProperties basicProperties, Payload payload, boolean unobserved) {
+        final String key = Strings.nullToEmpty(keyExtractor.getKey(routingKey, basicProperties));
+        final RabbitPublisher publisher = backingPublishers.get(AffinityKeyExtractor.bucket(key, backingPublishers.size()));
+        return Single.create(subscriber ->
+                enqueue(key, () -> publish(key, unobserved
+                        ? ((SingleChannelPublisher) publisher).publishUnobserved(exchange, routingKey, basicProperties, payload)
+                        : publisher.call(exchange, routingKey, basicProperties, payload), subscriber)));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (RabbitPublisher backingPublisher : backingPublishers) {
+            backingPublisher.close();
+        }
+    }
+
+    private void publish(String key, Single<Void> publish, SingleSubscriber<? super Void> subscriber) {
+        publish.subscribe(
+                ignored -> {
+                    publishNext(key);
+                    subscriber.onSuccess(null);
+                },
+                error -> {
+                    publishNext(key);
+                    subscriber.onError(error);
+                });
+    }
+
+    private void enqueue(String key, Runnable publish) {
+        final boolean[] idle = {false};
+        keyQueues.compute(key, (k, waiting) -> {
+            if (waiting == null) {
+                idle[0] = true;
+                return new ArrayDeque<>();
+            }
+            waiting.add(publish);
+            return waiting;
+        });
+        if (idle[0]) {
+            publish.run();
+        }
+    }
+
+    /**
+     * Publishes the next waiting message of the key. A publish that completes right away (like one that fails because
+     * the publisher is closed) calls this again from within run(), those calls only queue the key and are handled
+     * by the loop of the outermost call, so a long queue of such messages does not grow the stack.
+     */
+    private void publishNext(String key) {
+        ArrayDeque<String> nextKeys = draining.get();
+        if (nextKeys != null) {
+            nextKeys.add(key);
+            return;
+        }
+        nextKeys = new ArrayDeque<>();
+        draining.set(nextKeys);
+        try {
+            String nextKey = key;
+            while (nextKey != null) {
+                final Runnable next = pollNext(nextKey);
+                if (next != null) {
+                    next.run();
+                }
+                nextKey = nextKeys.poll();
+            }
+        } finally {
+            draining.remove();
+        }
+    }
+
+    private Runnable pollNext(String key) {
+        final Runnable[] next = {null};
+        keyQueues.computeIfPresent(key, (k, waiting) -> {
+            next[0] = waiting.poll();
+            return next[0] == null ? null : waiting;
+        });
+        return next[0];
+    }
+
+}
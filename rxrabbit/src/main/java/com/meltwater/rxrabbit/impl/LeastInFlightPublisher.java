@@ -0,0 +1,88 @@
+package com.meltwater.rxrabbit.impl;
+
+import com.meltwater.rxrabbit.Exchange;
+import com.meltwater.rxrabbit.Payload;
+import com.meltwater.rxrabbit.PublishRequest;
+import com.meltwater.rxrabbit.PublishResult;
+import com.meltwater.rxrabbit.RabbitPublisher;
+import com.meltwater.rxrabbit.RoutingKey;
+import com.meltwater.rxrabbit.util.PublishTransformer;
+import com.rabbitmq.client.AMQP;
+import rx.Observable;
+import rx.Single;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends each publish to the healthy backing publisher with the fewest messages in flight.
+ *
+ * Publishers with a broken channel are skipped until the channel has been re-created, unless all publishers are broken.
+ * The search starts at a new publisher for every call so that publishers with the same load are used round robin.
+ *
+ * The selection does not take any locks, a publish may therefore occasionally go to a publisher that has just been given
+ * another message by a concurrent caller.
+ */
+public class LeastInFlightPublisher implements RabbitPublisher {
+
+    private final List<SingleChannelPublisher> backingPublishers;
+    private final AtomicInteger nextStart = new AtomicInteger();
+
+    public LeastInFlightPublisher(List<SingleChannelPublisher> backingPublishers) {
+        assert !backingPublishers.isEmpty();
+        this.backingPublishers = backingPublishers;
+    }
+
+    @Override
+    public Single<Void> call(Exchange exchange, RoutingKey routingKey, AMQP.BasicProperties basicProperties, Payload payload) {
+        return select().call(exchange, routingKey, basicProperties, payload);
+    }
+
+    @Override
+    public Single<Void> call(List<PublishRequest> requests) {
+        return select().call(requests);
+    }
+
+    /**
+     * Every message of the stream goes to the least loaded publisher, the results are moved to the observe on scheduler
+     * once for the whole stream. The max in flight of the stream is the sum of the max in flight of the publishers.
+     */
+    @Override
+    public Observable<PublishResult> publishStream(Observable<PublishRequest> requests) {
+        final SingleChannelPublisher first = backingPublishers.get(0);
+        return first.observeResults(requests.compose(new PublishTransformer(
+                r -> select().publishUnobserved(r.exchange, r.routingKey, r.basicProperties, r.payload),
+                SingleChannelPublisher.streamMaxInFlight(first.getMaxInFlight(), backingPublishers.size()))));
+    }
+
+    SingleChannelPublisher select() {
+        final int size = backingPublishers.size();
+        if (size == 1) {
+            return backingPublishers.get(0);
+        }
+        final int start = Math.floorMod(nextStart.getAndIncrement(), size);
+        SingleChannelPublisher best = null;
+        boolean bestHealthy = false;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            SingleChannelPublisher candidate = backingPublishers.get((start + i) % size);
+            boolean healthy = candidate.isHealthy();
+            int load = candidate.getLoad();
+            if (best == null || (healthy && !bestHealthy) || (healthy == bestHealthy && load < bestLoad)) {
+                best = candidate;
+                bestHealthy = healthy;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (RabbitPublisher backingPublisher : backingPublishers) {
+            backingPublisher.close();
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.meltwater.rxrabbit.impl;
+
+/**
+ * Adjusts the prefetch count of a consumer channel within a min and max bound, based on the acks seen during an interval.
+ *
+ * The prefetch count is increased by half when the consumer was idle, i.e. had no un-acked messages at all, for more
+ * than 5% of the interval while it was acking messages. Messages are then not prefetched fast enough to keep the
+ * subscriber busy.
+ *
+ * When the consumer was never idle, it is decreased towards twice the number of messages needed to sustain the current
+ * ack rate at the lowest seen ack latency (Little's law). Holding more messages than that only makes them wait
+ * locally instead of being available to other consumers. It is decreased by at most a quarter per interval.
+ *
+ * Not thread safe, all methods must be called from the same thread (the ack thread of the consumer).
+ */
+class PrefetchController {
+
+    private static final int IDLE_PERCENT_THRESHOLD = 5;
+
+    private final int minPreFetchCount;
+    private final int maxPreFetchCount;
+
+    private int preFetchCount;
+    private long acks = 0;
+    private long minAckLatencyMillis = Long.MAX_VALUE;
+
+    PrefetchController(int preFetchCount, int minPreFetchCount, int maxPreFetchCount) {
+        assert minPreFetchCount > 0;
+        assert maxPreFetchCount >= minPreFetchCount;
+        this.minPreFetchCount = minPreFetchCount;
+        this.maxPreFetchCount = maxPreFetchCount;
+        this.preFetchCount = Math.max(minPreFetchCount, Math.min(maxPreFetchCount, preFetchCount));
+    }
+
+    int getPreFetchCount() {
+        return preFetchCount;
+    }
+
+    /**
+     * @param latencyMillis the time from the delivery of the message until it was acked
+     */
+    void acked(long latencyMillis) {
+        acks++;
+        if (latencyMillis < minAckLatencyMillis) {
+            minAckLatencyMillis = latencyMillis;
+        }
+    }
+
+    /**
+     * @param intervalMillis the length of the interval since the last adjustment
+     * @param idleMillis the time during the interval that the consumer had no un-acked messages
+     * @return the new prefetch count
+     */
+    int adjust(long intervalMillis, long idleMillis) {
+        if (acks == 0 || intervalMillis <= 0) {
+            return preFetchCount;
+        }
+        if (idleMillis * 100 > intervalMillis * IDLE_PERCENT_THRESHOLD) {
+            preFetchCount = Math.min(maxPreFetchCount, preFetchCount + Math.max(1, preFetchCount / 2));
+        } else {
+            final double acksPerMilli = (double) acks / intervalMillis;
+            final long needed = (long) Math.ceil(2 * acksPerMilli * Math.max(1, minAckLatencyMillis)) + 1;
+            if (needed < preFetchCount) {
+                final int decreased = preFetchCount - Math.max(1, preFetchCount / 4);
+                preFetchCount = (int) Math.max(minPreFetchCount, Math.max(needed, decreased));
+            }
+        }
+        acks = 0;
+        minAckLatencyMillis = Long.MAX_VALUE;
+        return preFetchCount;
+    }
+}
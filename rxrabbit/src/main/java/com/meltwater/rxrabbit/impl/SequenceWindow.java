@@ -0,0 +1,168 @@
+package com.meltwater.rxrabbit.impl;
+
+import java.util.List;
+
+/**
+ * An array backed ring buffer that holds values indexed by a dense and monotonically increasing sequence number,
+ * such as the publish confirm sequence numbers of a channel.
+ *
+ * Every value is stored together with a primitive timestamp. As values are put in sequence order the timestamps are also
+ * ordered, so expired values can be found by walking from the oldest sequence number until the first value that has not expired.
+ *
+ * Put, remove and lookups are allocation free (unless the buffer has to grow) and all methods are thread safe.
+ *
+ * @param <T> the type of the stored values
+ */
+class SequenceWindow<T> {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+    private Object[] values;
+    private long[] timestamps;
+    private int mask;
+
+    private long head = 0; //the lowest sequence number that can be occupied
+    private long tail = 0; //one more than the highest sequence number that has been put
+    private int size = 0;
+
+    SequenceWindow() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    SequenceWindow(int initialCapacity) {
+        assert initialCapacity > 0;
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity - 1, 1)) << 1;
+        this.values = new Object[capacity];
+        this.timestamps = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @param seqNo the sequence number, must not be lower than any sequence number that is currently stored
+     * @param value the value to store
+     * @param timestamp the timestamp used to decide when the value expires
+     */
+    synchronized void put(long seqNo, T value, long timestamp) {
+        if (size == 0) {
+            head = seqNo;
+            tail = seqNo;
+        } else if (seqNo < head) {
+            throw new IllegalArgumentException("Sequence number " + seqNo + " is lower than the oldest stored sequence number " + head);
+        }
+        ensureCapacity(seqNo - head + 1);
+        final int index = (int) (seqNo & mask);
+        if (values[index] == null) {
+            size++;
+        }
+        values[index] = value;
+        timestamps[index] = timestamp;
+        if (seqNo >= tail) {
+            tail = seqNo + 1;
+        }
+    }
+
+    /**
+     * @return the removed value or null if there was no value stored for the sequence number
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T remove(long seqNo) {
+        if (seqNo < head || seqNo >= tail) {
+            return null;
+        }
+        final int index = (int) (seqNo & mask);
+        T value = (T) values[index];
+        if (value != null) {
+            values[index] = null;
+            size--;
+            advanceHead();
+        }
+        return value;
+    }
+
+    /**
+     * Removes all values in the given range of sequence numbers. Only the part of the range that can hold values is
+     * visited, so the cost is proportional to the size of the range and not to the number of stored values.
+     *
+     * @param fromInclusive the first sequence number to remove
+     * @param toInclusive the last sequence number to remove
+     * @param removed the removed values are added to this list in sequence order
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void removeRange(long fromInclusive, long toInclusive, List<? super T> removed) {
+        final long end = Math.min(toInclusive + 1, tail);
+        for (long seqNo = Math.max(fromInclusive, head); seqNo < end; seqNo++) {
+            final int index = (int) (seqNo & mask);
+            if (values[index] != null) {
+                removed.add((T) values[index]);
+                values[index] = null;
+                size--;
+            }
+        }
+        advanceHead();
+    }
+
+    /**
+     * Removes all values with a timestamp less than or equal to the deadline.
+     *
+     * @param deadline the timestamp to compare with
+     * @param expired the removed values are added to this list in sequence order
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void removeExpired(long deadline, List<? super T> expired) {
+        for (long seqNo = head; seqNo < tail; seqNo++) {
+            final int index = (int) (seqNo & mask);
+            if (values[index] == null) {
+                continue;
+            }
+            if (timestamps[index] > deadline) {
+                break;
+            }
+            expired.add((T) values[index]);
+            values[index] = null;
+            size--;
+        }
+        advanceHead();
+    }
+
+    /**
+     * Removes all values.
+     *
+     * @param removed the removed values are added to this list in sequence order
+     */
+    synchronized void removeAll(List<? super T> removed) {
+        removeExpired(Long.MAX_VALUE, removed);
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void advanceHead() {
+        while (head < tail && values[(int) (head & mask)] == null) {
+            head++;
+        }
+    }
+
+    private void ensureCapacity(long needed) {
+        if (needed <= values.length) {
+            return;
+        }
+        if (needed > (1 << 30)) {
+            throw new IllegalStateException("Too many values in the sequence window: " + needed);
+        }
+        int capacity = values.length;
+        while (capacity < needed) {
+            capacity <<= 1;
+        }
+        final int newMask = capacity - 1;
+        final Object[] newValues = new Object[capacity];
+        final long[] newTimestamps = new long[capacity];
+        for (long seqNo = head; seqNo < tail; seqNo++) {
+            newValues[(int) (seqNo & newMask)] = values[(int) (seqNo & mask)];
+            newTimestamps[(int) (seqNo & newMask)] = timestamps[(int) (seqNo & mask)];
+        }
+        values = newValues;
+        timestamps = newTimestamps;
+        mask = newMask;
+    }
+}
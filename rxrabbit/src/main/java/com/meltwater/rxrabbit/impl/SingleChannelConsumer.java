@@ -1,11 +1,12 @@
 package com.meltwater.rxrabbit.impl;
 
-import com.google.common.collect.Collections2;
 import com.meltwater.rxrabbit.Acknowledger;
 import com.meltwater.rxrabbit.ChannelFactory;
 import com.meltwater.rxrabbit.ConsumeChannel;
 import com.meltwater.rxrabbit.ConsumeEventListener;
+import com.meltwater.rxrabbit.ConsumerSettings;
 import com.meltwater.rxrabbit.Message;
+import com.meltwater.rxrabbit.MessageBatch;
 import com.meltwater.rxrabbit.util.BackoffAlgorithm;
 import com.meltwater.rxrabbit.util.Logger;
 import com.rabbitmq.client.AMQP;
@@ -15,16 +16,23 @@ import com.rabbitmq.client.ShutdownSignalException;
 import rx.Observable;
 import rx.Scheduler;
 import rx.Subscriber;
+import rx.functions.Action0;
 import rx.schedulers.Schedulers;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -44,7 +52,9 @@ public class SingleChannelConsumer implements RabbitConsumer {
     private final static AtomicInteger consumerCount = new AtomicInteger();
 
     private final static Logger log = new Logger(SingleChannelConsumer.class);
-    public static final int UNACKED_WARNING_TIME_MS = 6 * 60 * 1000; //5 minutes
+    public static final int UNACKED_REPORT_INTERVAL_MS = 1000;
+    public static final int UNACKED_WARNING_INTERVAL_MS = 60 * 1000;
+    public static final int PREFETCH_ADJUST_INTERVAL_MS = 1000;
 
     private final ConsumeEventListener metricsReporter;
     private final ChannelFactory channelFactory;
@@ -55,6 +65,13 @@ public class SingleChannelConsumer implements RabbitConsumer {
     private final String queue;
     private final int preFetchCount;
     private final BackoffAlgorithm backoffAlgorithm;
+    private final int ackBatchSize;
+    private final long ackFlushIntervalMillis;
+    private final boolean directDispatch;
+    private final boolean demandDriven;
+    private final int minPreFetchCount;
+    private final int maxPreFetchCount;
+    private final long unackedWarningMillis;
 
     /**
      * @param channelFactory       used to create new channels when needed
@@ -76,26 +93,86 @@ public class SingleChannelConsumer implements RabbitConsumer {
                                  Scheduler observeOnScheduler,
                                  ConsumeEventListener consumeEventListener,
                                  BackoffAlgorithm backoffAlgorithm) {
+        this(channelFactory, queue, tagPrefix, maxReconnectAttempts, observeOnScheduler, consumeEventListener,
+                new ConsumerSettings()
+                        .withPreFetchCount(preFetchCount)
+                        .withCloseTimeoutMillis(closeTimeout)
+                        .withBackoffAlgorithm(backoffAlgorithm));
+    }
+
+    /**
+     * @param channelFactory       used to create new channels when needed
+     * @param queue                the queue to consume from
+     * @param tagPrefix            a prefix for the consumer tag, an ever increasing integer will be appended at the end
+     * @param maxReconnectAttempts how many times to try re-connects. 0 or negative number for trying forever
+     * @param observeOnScheduler   the scheduler that the onNext(Message) will be called on
+     * @param consumeEventListener event listener that will be notified about message receive, failures and ack/nack events
+     * @param settings             the prefetch count, close timeout, backoff algorithm and the ack and dispatch options
+     *                             of the consumer, the channel count, tag prefix and retry count are not used
+     */
+    public SingleChannelConsumer(ChannelFactory channelFactory,
+                                 String queue,
+                                 String tagPrefix,
+                                 int maxReconnectAttempts,
+                                 Scheduler observeOnScheduler,
+                                 ConsumeEventListener consumeEventListener,
+                                 ConsumerSettings settings) {
         this.queue = queue;
         this.channelFactory = channelFactory;
-        this.preFetchCount = preFetchCount;
+        final int preFetchCount = settings.getPre_fetch_count();
+        if (settings.getMax_pre_fetch_count() > 0) {
+            this.minPreFetchCount = settings.getMin_pre_fetch_count();
+            this.maxPreFetchCount = settings.getMax_pre_fetch_count();
+            this.preFetchCount = Math.max(minPreFetchCount, Math.min(maxPreFetchCount, preFetchCount));
+        } else {
+            this.minPreFetchCount = preFetchCount;
+            this.maxPreFetchCount = preFetchCount;
+            this.preFetchCount = preFetchCount;
+        }
         this.observeOnScheduler = observeOnScheduler;
-        this.closeTimeout = closeTimeout;
+        this.closeTimeout = settings.getClose_timeout_millis();
         this.tagPrefix = tagPrefix;
         this.maxReconnectAttempts = maxReconnectAttempts;
         this.metricsReporter = consumeEventListener;
-        this.backoffAlgorithm = backoffAlgorithm;
+        this.backoffAlgorithm = settings.getBackoff_algorithm();
+        this.ackBatchSize = settings.getAck_batch_size();
+        this.ackFlushIntervalMillis = settings.getAck_flush_interval_millis();
+        this.directDispatch = settings.isDirect_dispatch();
+        this.demandDriven = settings.isDemand_driven();
+        this.unackedWarningMillis = settings.getUnacked_warning_millis();
     }
 
     @Override
     public synchronized Observable<Message> consume() {
+        if (demandDriven) {
+            // The consumer emits on the observeOn scheduler itself, so the requests of the subscriber reach the prefetch
+            // count without a prefetching observeOn queue in between
+            return Observable.defer(this::createObservable);
+        }
+        if (directDispatch) {
+            // The bounded observeOn queue is part of each channel subscription, so a broken channel never leaves stale deliveries in it
+            return Observable.defer(this::createObservable);
+        }
         return Observable.defer(this::createObservable).observeOn(observeOnScheduler);
     }
 
+    /**
+     * Like {@link #consume()} but emits the messages in batches of at most maxSize messages, or what has been received
+     * within maxWaitMillis. Acking a batch settles all its messages with one task on the ack thread, and a batch of
+     * contiguous deliveries is sent to the broker as one multiple ack (or nack).
+     */
+    public Observable<MessageBatch> consumeBatches(int maxSize, long maxWaitMillis) {
+        assert maxSize > 0;
+        return consume()
+                .buffer(maxWaitMillis, TimeUnit.MILLISECONDS, maxSize)
+                .filter(messages -> !messages.isEmpty())
+                .map(messages -> new MessageBatch(new BatchAcknowledger(messages), messages));
+    }
+
     private Observable<Message> createObservable() {
         final AtomicReference<InternalConsumer> consumerRef = new AtomicReference<>(null);
         final ConnectionRetryHandler retryHandler = new ConnectionRetryHandler(backoffAlgorithm, maxReconnectAttempts);
-        return create((Observable.OnSubscribe<Message>) subscriber -> {
+        final Observable<Message> channelMessages = create((Observable.OnSubscribe<Message>) subscriber -> {
             if (!subscriber.isUnsubscribed()) {
                 try {
                     startConsuming(subscriber, consumerRef);
@@ -111,14 +188,21 @@ public class SingleChannelConsumer implements RabbitConsumer {
                     subscriber.onError(e);
                 }
             }
-        })
+        });
+        // In direct dispatch mode the bounded observeOn queue is part of each channel subscription. The broker never has
+        // more than maxPreFetchCount un-acked deliveries out on a channel, and a delivery stays un-acked at least until
+        // it has left the queue, so it never overflows. When the channel breaks the error is emitted without waiting for
+        // the queue, and the deliveries still in it are dropped. They were never acked, so the broker delivers them
+        // again on the channel that replaces it.
+        final Observable<Message> messages = (directDispatch && !demandDriven ? channelMessages.observeOn(observeOnScheduler, maxPreFetchCount) : channelMessages)
                 // If we ever successfully get a message, we should reset the error handler
                 .doOnNext(message -> retryHandler.reset())
                 // On error, make sure to close the existing channel with an error before using the retryHandler
                 .doOnError(throwable -> terminate(consumerRef))
-                .retryWhen(retryHandler)
-                // handle back pressure by buffering
-                .onBackpressureBuffer()
+                .retryWhen(retryHandler);
+        // handle back pressure by buffering, in direct dispatch mode the bounded observeOn queue is the only buffer and
+        // in demand driven mode the consumer itself only emits what has been requested
+        return (directDispatch || demandDriven ? messages : messages.onBackpressureBuffer())
                 // If someone unsubscribes, close the channel cleanly
                 .doOnUnsubscribe(() -> close(consumerRef));
     }
@@ -139,7 +223,12 @@ public class SingleChannelConsumer implements RabbitConsumer {
     private synchronized void startConsuming(Subscriber<? super Message> subscriber,
                                              AtomicReference<InternalConsumer> consumerRef) throws IOException {
         ConsumeChannel channel = channelFactory.createConsumeChannel(queue);
-        channel.basicQos(preFetchCount);
+        if (minPreFetchCount < maxPreFetchCount && !demandDriven) {
+            //The adaptive prefetch count is changed while consuming, which only applies to the running consumer when it is global
+            channel.basicQos(preFetchCount, true);
+        } else if (!demandDriven) {
+            channel.basicQos(preFetchCount);
+        }
         int consumerCount = SingleChannelConsumer.consumerCount.incrementAndGet();
         String consumerTag = this.tagPrefix + "-" + consumerCount;
         log.infoWithParams("Starting up consumer.",
@@ -150,12 +239,17 @@ public class SingleChannelConsumer implements RabbitConsumer {
         InternalConsumer cons;
         String threadNamePrefix = "consume-thread-" + consumerCount;
         if (consumerRef.get() == null) {
-            cons = new InternalConsumer(channel, subscriber, closeTimeout, threadNamePrefix, metricsReporter, new AtomicLong(), new AtomicLong());
+            cons = new InternalConsumer(channel, subscriber, closeTimeout, threadNamePrefix, metricsReporter, new AtomicLong(), new AtomicLong(), preFetchCount, minPreFetchCount, maxPreFetchCount, ackBatchSize, ackFlushIntervalMillis, directDispatch, demandDriven, observeOnScheduler, unackedWarningMillis);
         } else {
             cons = new InternalConsumer(consumerRef.get(), threadNamePrefix, channel, subscriber);
         }
         consumerRef.set(cons);
         try {
+            if (demandDriven) {
+                subscriber.setProducer(cons::request);
+                //Must be set before consuming starts, a channel without a prefetch count has no limit at all
+                cons.updatePrefetch();
+            }
             channel.basicConsume(
                     consumerTag,
                     cons);
@@ -172,8 +266,38 @@ public class SingleChannelConsumer implements RabbitConsumer {
         private final Scheduler.Worker ackWorker;
         private final Scheduler.Worker deliveryWorker;
         private final Scheduler.Worker unackedMessagesWorker;
+        private final Scheduler.Worker emitWorker; //null unless in demand driven mode
 
         private final long closeTimeout;
+        private final int preFetchCount;
+        private final int minPreFetchCount;
+        private final int maxPreFetchCount;
+        private final int ackBatchSize;
+        private final long ackFlushIntervalMillis;
+        private final boolean directDispatch;
+        private final boolean demandDriven;
+
+        //Only used in demand driven mode
+        private final Scheduler observeOnScheduler;
+        private final Queue<Delivery> pendingMessages = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger drainWip = new AtomicInteger();
+        private final Object prefetchLock = new Object();
+        private int currentPrefetch = 0; //guarded by prefetchLock
+        private volatile boolean failed = false; //only set from the emitWorker
+
+        //Null unless the prefetch count is adaptive, only touched from the ackWorker
+        private final PrefetchController prefetchController;
+        private volatile int preFetchLimit;
+        private long lastPrefetchAdjust = System.currentTimeMillis();
+
+        private final long unackedWarningMillis;
+        private long lastUnackedWarning = 0; //only touched from the unackedMessagesWorker
+
+        //Only touched from the ackWorker
+        private final AckCoalescer<Delivery> acks;
+        private boolean ackFlushScheduled = false;
 
         private final AtomicBoolean stopping = new AtomicBoolean(false);
         private final AtomicLong deliveryOffset;
@@ -181,7 +305,7 @@ public class SingleChannelConsumer implements RabbitConsumer {
 
         private final ConsumeChannel channel;
         private String consumerTag;
-        private final Map<Long, Long> unackedMessages = new ConcurrentHashMap<>();
+        private final UnackedDeliveries unackedMessages;
 
         public InternalConsumer(ConsumeChannel channel,
                                 Subscriber<? super Message> subscriber,
@@ -189,48 +313,73 @@ public class SingleChannelConsumer implements RabbitConsumer {
                                 String threadNamePrefix,
                                 ConsumeEventListener consumeEventListener,
                                 AtomicLong deliveryOffset,
-                                AtomicLong largestSeenDeliverTag) {
+                                AtomicLong largestSeenDeliverTag,
+                                int preFetchCount,
+                                int minPreFetchCount,
+                                int maxPreFetchCount,
+                                int ackBatchSize,
+                                long ackFlushIntervalMillis,
+                                boolean directDispatch,
+                                boolean demandDriven,
+                                Scheduler observeOnScheduler,
+                                long unackedWarningMillis) {
             this.channel = channel;
             this.closeTimeout = closeTimeout;
             this.subscriber = subscriber;
             this.consumeEventListener = consumeEventListener;
             this.deliveryOffset = deliveryOffset;
             this.largestSeenDeliverTag = largestSeenDeliverTag;
+            this.preFetchCount = preFetchCount;
+            this.minPreFetchCount = minPreFetchCount;
+            this.maxPreFetchCount = maxPreFetchCount;
+            this.preFetchLimit = preFetchCount;
+            this.ackBatchSize = ackBatchSize;
+            this.ackFlushIntervalMillis = ackFlushIntervalMillis;
+            this.directDispatch = directDispatch;
+            this.demandDriven = demandDriven;
+            this.observeOnScheduler = observeOnScheduler;
+            this.unackedWarningMillis = unackedWarningMillis;
+            this.unackedMessages = new UnackedDeliveries(maxPreFetchCount);
             this.deliveryWorker = Schedulers.io().createWorker();
             deliveryWorker.schedule(() -> Thread.currentThread().setName(threadNamePrefix + "-delivery"));
             this.ackWorker = Schedulers.io().createWorker();
             ackWorker.schedule(() -> Thread.currentThread().setName(threadNamePrefix + "-ack"));
             this.unackedMessagesWorker = Schedulers.io().createWorker();
             unackedMessagesWorker.schedule(() -> Thread.currentThread().setName(threadNamePrefix + "-unacked"));
+            this.emitWorker = demandDriven ? observeOnScheduler.createWorker() : null;
             deliveryOffset.set(largestSeenDeliverTag.get());
-            unackedMessagesWorker.schedulePeriodically(this::logUnackedMessages, 1, 1, TimeUnit.MINUTES);
-
-        }
-
-        private void logUnackedMessages() {
-            Collection<Long> oldMessages = Collections2.filter(unackedMessages.values(),
-                    createdAt -> createdAt <= System.currentTimeMillis() - UNACKED_WARNING_TIME_MS);
-
-            long leastTimestamp = Long.MAX_VALUE;
-            for (Long timestamp : oldMessages) {
-                if (timestamp < leastTimestamp) {
-                    leastTimestamp = timestamp;
-                }
+            this.acks = new AckCoalescer<>(deliveryOffset.get(), ackBatchSize, this::sendAcks);
+            unackedMessagesWorker.schedulePeriodically(this::reportUnackedMessages, UNACKED_REPORT_INTERVAL_MS, UNACKED_REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (minPreFetchCount < maxPreFetchCount) {
+                this.prefetchController = new PrefetchController(preFetchCount, minPreFetchCount, maxPreFetchCount);
+                ackWorker.schedulePeriodically(this::adjustPrefetch, PREFETCH_ADJUST_INTERVAL_MS, PREFETCH_ADJUST_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } else {
+                this.prefetchController = null;
             }
 
-            long age = System.currentTimeMillis() - leastTimestamp;
-
+        }
 
-            if (oldMessages.size() > 0) {
+        /**
+         * Reports the age of the oldest un-acked message every second, and logs a warning at most once a minute when it
+         * is older than the warning threshold. Finding the oldest message is O(1), only the number of old messages in
+         * the warning needs a scan.
+         */
+        private void reportUnackedMessages() {
+            final long now = System.currentTimeMillis();
+            final long oldestReceivedAt = unackedMessages.getOldestReceivedAt();
+            final long age = oldestReceivedAt == 0 ? 0 : now - oldestReceivedAt;
+            consumeEventListener.oldestUnacked(age, unackedMessages.size());
+            if (age > unackedWarningMillis && now - lastUnackedWarning >= UNACKED_WARNING_INTERVAL_MS) {
+                lastUnackedWarning = now;
                 log.warnWithParams("Long-lived un-acked messages found",
-                        "nrMessages", oldMessages.size(),
-                        "olderThanMs", UNACKED_WARNING_TIME_MS,
+                        "nrMessages", unackedMessages.countReceivedBefore(now - unackedWarningMillis),
+                        "olderThanMs", unackedWarningMillis,
                         "oldestMs", age);
             }
         }
 
         public InternalConsumer(InternalConsumer that, String threadNamePrefix, ConsumeChannel channel, Subscriber<? super Message> subscriber) {
-            this(channel, subscriber, that.closeTimeout, threadNamePrefix, that.consumeEventListener, that.deliveryOffset, that.largestSeenDeliverTag);
+            this(channel, subscriber, that.closeTimeout, threadNamePrefix, that.consumeEventListener, that.deliveryOffset, that.largestSeenDeliverTag, that.preFetchCount, that.minPreFetchCount, that.maxPreFetchCount, that.ackBatchSize, that.ackFlushIntervalMillis, that.directDispatch, that.demandDriven, that.observeOnScheduler, that.unackedWarningMillis);
         }
 
         @Override
@@ -258,7 +407,7 @@ public class SingleChannelConsumer implements RabbitConsumer {
                     "channel", channel.toString(),
                     "queue", channel.getQueue(),
                     "consumerTag", consumerTag);
-            subscriber.onError(new RuntimeException("Broker sent cancel message to consumer"));
+            fail(new RuntimeException("Broker sent cancel message to consumer"));
         }
 
         @Override
@@ -267,125 +416,317 @@ public class SingleChannelConsumer implements RabbitConsumer {
                     "channel", channel.toString(),
                     "queue", channel.getQueue(),
                     "consumerTag", consumerTag);
-            subscriber.onError(sig);
+            fail(sig);
+        }
+
+        /**
+         * In demand driven mode the error is emitted on the emitWorker, after the message that is being emitted.
+         * The pending messages are dropped, they were never handed on so the broker delivers them again.
+         */
+        private void fail(Throwable error) {
+            if (emitWorker == null) {
+                subscriber.onError(error);
+                return;
+            }
+            emitWorker.schedule(() -> {
+                failed = true;
+                subscriber.onError(error);
+            });
         }
 
         @Override
         public void handleRecoverOk(String consumerTag) {
         }
 
+        /**
+         * The rabbit client never calls this concurrently for one consumer, so deliveries are handed on in the order
+         * they were received both when they are dispatched directly and via the delivery worker. In demand driven mode
+         * the deliveries are queued directly, as they are emitted from the emitWorker.
+         */
         @Override
-        public synchronized void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties headers, byte[] body) throws IOException {
-            deliveryWorker.schedule(() -> {
-                if (!subscriber.isUnsubscribed() && !stopping.get()) {
-                    long internalDeliverTag = envelope.getDeliveryTag() + deliveryOffset.get();
-                    if (internalDeliverTag > largestSeenDeliverTag.get()) {
-                        largestSeenDeliverTag.set(internalDeliverTag);
-                    }
-                    log.traceWithParams("Consumer received message",
-                            "messageId", headers.getMessageId(),
-                            "externalDeliveryTag", envelope.getDeliveryTag(),
-                            "internalDeliveryTag", internalDeliverTag,
-                            "largestSeenDeliverTag", largestSeenDeliverTag.get(),
-                            "messageHeaders", headers);
-                    unackedMessages.put(internalDeliverTag, System.currentTimeMillis());
-                    final Envelope internalEnvelope = new Envelope(internalDeliverTag, envelope.isRedeliver(), envelope.getExchange(), envelope.getRoutingKey());
-                    Acknowledger acknowledger = createAcknowledger(channel, internalEnvelope, headers, body);
-                    Message message = new Message(acknowledger, internalEnvelope, headers, body);
-                    consumeEventListener.received(message, unackedMessages.size());
-                    try {
-                        subscriber.onNext(message);
-                    } catch (Exception e) {
-                        log.errorWithParams("Unhandled error when sending message to subscriber. This should NEVER happen.",
-                                e,
-                                "basicProperties", headers,
-                                "body", new String(body, Charset.forName("utf-8")));
-                        acknowledger.reject();
-                    }
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties headers, byte[] body) throws IOException {
+            if (directDispatch || demandDriven) {
+                deliver(envelope, headers, body);
+            } else {
+                deliveryWorker.schedule(() -> deliver(envelope, headers, body));
+            }
+        }
+
+        private void deliver(Envelope envelope, AMQP.BasicProperties headers, byte[] body) {
+            if (!subscriber.isUnsubscribed() && !stopping.get()) {
+                long internalDeliverTag = envelope.getDeliveryTag() + deliveryOffset.get();
+                if (internalDeliverTag > largestSeenDeliverTag.get()) {
+                    largestSeenDeliverTag.set(internalDeliverTag);
+                }
+                log.traceWithParams("Consumer received message",
+                        "messageId", headers.getMessageId(),
+                        "externalDeliveryTag", envelope.getDeliveryTag(),
+                        "internalDeliveryTag", internalDeliverTag,
+                        "largestSeenDeliverTag", largestSeenDeliverTag.get(),
+                        "messageHeaders", headers);
+                final long receivedAt = System.currentTimeMillis();
+                unackedMessages.put(internalDeliverTag, receivedAt);
+                //The envelope from the rabbit client is only copied when the internal tag differs, i.e. after a re-connect
+                final Envelope internalEnvelope = internalDeliverTag == envelope.getDeliveryTag()
+                        ? envelope
+                        : new Envelope(internalDeliverTag, envelope.isRedeliver(), envelope.getExchange(), envelope.getRoutingKey());
+                final Delivery delivery = new Delivery(this, internalDeliverTag, internalEnvelope, headers, body, receivedAt);
+                consumeEventListener.received(delivery, unackedMessages.size());
+                if (demandDriven) {
+                    pendingCount.incrementAndGet();
+                    pendingMessages.offer(delivery);
+                    drain();
                 } else {
-                    log.traceWithParams("Ignoring message received during shutdown.",
-                            "channel", channel.toString(),
-                            "deliveryTag", envelope.getDeliveryTag(),
-                            "messageId", headers.getMessageId(),
-                            "basicProperties", headers.toString());
+                    emit(delivery);
                 }
-            });
+            } else {
+                log.traceWithParams("Ignoring message received during shutdown.",
+                        "channel", channel.toString(),
+                        "deliveryTag", envelope.getDeliveryTag(),
+                        "messageId", headers.getMessageId(),
+                        "basicProperties", headers.toString());
+            }
         }
 
-        private Acknowledger createAcknowledger(final ConsumeChannel channel,
-                                                final Envelope envelope,
-                                                final AMQP.BasicProperties headers,
-                                                final byte[] payload) {
-            final long processingStart = System.currentTimeMillis();
-            final long deliveryTag = envelope.getDeliveryTag();
-            final AtomicBoolean hasAcked = new AtomicBoolean(false); //This is here to prevent double acking which causes
-            return new Acknowledger() {
-                @Override
-                public void ack() {
-                    if (hasAcked.getAndSet(true)) {
-                        log.infoWithParams("Attempt to ack an already acked message will be ignored.",
-                                "deliveryTag", deliveryTag,
-                                "basicProperties", headers.toString());
-                        return;
+        private void emit(Message message) {
+            try {
+                subscriber.onNext(message);
+            } catch (Exception e) {
+                log.errorWithParams("Unhandled error when sending message to subscriber. This should NEVER happen.",
+                        e,
+                        "basicProperties", message.basicProperties,
+                        "body", new String(message.payload, Charset.forName("utf-8")));
+                message.acknowledger.reject();
+            }
+        }
+
+        /**
+         * Called by the subscriber when it wants more messages. The requests are added up and the prefetch count is
+         * raised if needed.
+         */
+        void request(long n) {
+            if (n <= 0) {
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = requested.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!requested.compareAndSet(current, next));
+            ackWorker.schedule(this::tryUpdatePrefetch);
+            drain();
+        }
+
+        /**
+         * Emits pending messages on the emitWorker while there are outstanding requests. Can be called from any thread,
+         * only one drain task is scheduled at the time and the other calls just make sure it loops once more.
+         */
+        private void drain() {
+            if (drainWip.getAndIncrement() == 0) {
+                emitWorker.schedule(this::drainLoop);
+            }
+        }
+
+        private void drainLoop() {
+            int missed = 1;
+            do {
+                while (requested.get() > 0 && !subscriber.isUnsubscribed() && !stopping.get() && !failed) {
+                    final Delivery message = pendingMessages.poll();
+                    if (message == null) {
+                        break;
                     }
-                    long ackStart = System.currentTimeMillis();
-                    Message message = new Message(this, envelope, headers, payload);
-                    ackWorker.schedule(() -> {
-                        try {
-                            //TODO should we add multi ack here ??
-                            final long currentDeliveryOffset = deliveryOffset.get();
-                            if (currentDeliveryOffset >= deliveryTag) {
-                                consumeEventListener.ignoredAck(message);
-                            } else {
-                                long actualDeliverTag = deliveryTag - currentDeliveryOffset;
-                                consumeEventListener.beforeAck(message);
-                                channel.basicAck(actualDeliverTag, false);
-                            }
-                        } catch (Exception e) {
-                            consumeEventListener.afterFailedAck(message, e, channel.isOpen());
-                        } finally {
-                            removeAndNotifyOutstanding(deliveryTag);
-                        }
-                        consumeEventListener.done(message, unackedMessages.size(), ackStart, processingStart);
-                    });
+                    pendingCount.decrementAndGet();
+                    if (requested.get() != Long.MAX_VALUE) {
+                        requested.decrementAndGet();
+                    }
+                    emit(message);
+                }
+                missed = drainWip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Sets the prefetch count to the number of messages that are handed on but not acked yet plus the number of
+         * requested messages, bounded by the (adaptive) preFetchCount. The prefetch count is raised as soon as
+         * more messages are requested but only lowered when it is twice what is needed, to avoid a basicQos round
+         * trip for every ack. The prefetch count is set for the whole channel, as a per consumer one would not apply
+         * to the consumer that is already running.
+         */
+        void updatePrefetch() throws IOException {
+            synchronized (prefetchLock) {
+                final long inProgress = Math.max(0, unackedMessages.size() - pendingCount.get());
+                final int limit = preFetchLimit;
+                final int target = (int) Math.max(1, Math.min(limit, inProgress + Math.min(requested.get(), limit)));
+                if (target > currentPrefetch || target <= currentPrefetch / 2 || currentPrefetch > limit) {
+                    channel.basicQos(target, true);
+                    currentPrefetch = target;
+                }
+            }
+        }
+
+        /**
+         * Called periodically on the ackWorker when the prefetch count is adaptive.
+         */
+        private void adjustPrefetch() {
+            if (stopping.get()) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            final int adjusted = prefetchController.adjust(now - lastPrefetchAdjust, unackedMessages.takeEmptyMillis(now));
+            lastPrefetchAdjust = now;
+            if (adjusted == preFetchLimit) {
+                return;
+            }
+            log.debugWithParams("Adjusting the prefetch count.",
+                    "channel", channel.toString(),
+                    "consumerTag", consumerTag,
+                    "preFetchCount", adjusted,
+                    "previousPreFetchCount", preFetchLimit);
+            preFetchLimit = adjusted;
+            if (demandDriven) {
+                tryUpdatePrefetch();
+                return;
+            }
+            try {
+                channel.basicQos(adjusted, true);
+            } catch (Exception e) {
+                log.warnWithParams("Could not update the prefetch count",
+                        e,
+                        "channel", channel.toString(),
+                        "consumerTag", consumerTag);
+            }
+        }
+
+        private void tryUpdatePrefetch() {
+            if (stopping.get()) {
+                return;
+            }
+            try {
+                updatePrefetch();
+            } catch (Exception e) {
+                log.warnWithParams("Could not update the prefetch count",
+                        e,
+                        "channel", channel.toString(),
+                        "consumerTag", consumerTag);
+            }
+        }
+
+        /**
+         * Messages that were never handed on are not going to be acked, they are re-delivered by the broker once
+         * the channel is closed.
+         */
+        private void discardPending() {
+            Delivery delivery;
+            while ((delivery = pendingMessages.poll()) != null) {
+                pendingCount.decrementAndGet();
+                removeAndNotifyOutstanding(delivery.deliveryTag);
+            }
+        }
+
+        /**
+         * Called on the ackWorker. Acks for deliveries on an earlier channel are ignored directly, the rest are
+         * handed to the ack coalescer which sends them when enough acks are pending or the flush interval has passed.
+         */
+        private void settle(Delivery delivery) {
+            final boolean ack = delivery.isAcked();
+            if (ignoreIfFromEarlierChannel(ack, delivery)) {
+                return;
+            }
+            acks.settle(delivery.deliveryTag, ack, delivery);
+            scheduleAckFlush();
+        }
+
+        /**
+         * Called on the ackWorker. All the deliveries are handed to the ack coalescer before it is flushed, so a batch
+         * of contiguous deliveries is sent with one multiple ack (or nack).
+         */
+        private void settleAll(boolean ack, List<Delivery> deliveries) {
+            for (Delivery delivery : deliveries) {
+                if (!ignoreIfFromEarlierChannel(ack, delivery)) {
+                    acks.settleWithoutFlush(delivery.deliveryTag, ack, delivery);
                 }
+            }
+            acks.flush();
+        }
 
-                @Override
-                public void reject() {
-                    if (hasAcked.getAndSet(true)) {
-                        log.infoWithParams("Attempt to reject an already acked message will be ignored.",
-                                "deliveryTag", deliveryTag,
-                                "basicProperties", headers.toString());
-                        return;
+        private boolean ignoreIfFromEarlierChannel(boolean ack, Delivery delivery) {
+            if (deliveryOffset.get() < delivery.deliveryTag) {
+                return false;
+            }
+            if (ack) {
+                consumeEventListener.ignoredAck(delivery);
+            } else {
+                consumeEventListener.ignoredNack(delivery);
+            }
+            removeAndNotifyOutstanding(delivery.deliveryTag);
+            consumeEventListener.done(delivery, unackedMessages.size(), delivery.settleStart, delivery.processingStart);
+            return true;
+        }
+
+        private void scheduleAckFlush() {
+            if (acks.getPending() > 0 && !ackFlushScheduled) {
+                ackFlushScheduled = true;
+                ackWorker.schedule(() -> {
+                    ackFlushScheduled = false;
+                    acks.flush();
+                }, ackFlushIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void sendAcks(boolean ack, long deliveryTag, boolean multiple, List<Delivery> settled) {
+            try {
+                final long currentDeliveryOffset = deliveryOffset.get();
+                if (currentDeliveryOffset >= deliveryTag) {
+                    for (Delivery delivery : settled) {
+                        if (ack) {
+                            consumeEventListener.ignoredAck(delivery);
+                        } else {
+                            consumeEventListener.ignoredNack(delivery);
+                        }
                     }
-                    final long nackStart = System.currentTimeMillis();
-                    Message message = new Message(this, envelope, headers, payload);
-                    ackWorker.schedule(() -> {
-                        try {
-                            final long currentDeliveryOffset = deliveryOffset.get();
-                            if (currentDeliveryOffset >= envelope.getDeliveryTag()) {
-                                consumeEventListener.ignoredNack(message);
-                            } else {
-                                long actualDeliverTag = envelope.getDeliveryTag() - currentDeliveryOffset;
-                                consumeEventListener.beforeNack(message);
-                                channel.basicNack(actualDeliverTag, false);
-                            }
-                        } catch (Exception e) {
-                            consumeEventListener.afterFailedNack(message, e, channel.isOpen());
-                        } finally {
-                            removeAndNotifyOutstanding(deliveryTag);
+                } else {
+                    for (Delivery delivery : settled) {
+                        if (ack) {
+                            consumeEventListener.beforeAck(delivery);
+                        } else {
+                            consumeEventListener.beforeNack(delivery);
                         }
-                        consumeEventListener.done(message, unackedMessages.size(), nackStart, processingStart);
-                    });
+                    }
+                    long actualDeliverTag = deliveryTag - currentDeliveryOffset;
+                    if (ack) {
+                        channel.basicAck(actualDeliverTag, multiple);
+                    } else {
+                        channel.basicNack(actualDeliverTag, multiple);
+                    }
                 }
-
-                private void removeAndNotifyOutstanding(Long deliveryTag) {
-                    synchronized (unackedMessages) {
-                        unackedMessages.remove(deliveryTag);
-                        unackedMessages.notifyAll();
+            } catch (Exception e) {
+                final boolean open = channel.isOpen();
+                for (Delivery delivery : settled) {
+                    if (ack) {
+                        consumeEventListener.afterFailedAck(delivery, e, open);
+                    } else {
+                        consumeEventListener.afterFailedNack(delivery, e, open);
                     }
                 }
-            };
+            } finally {
+                for (Delivery delivery : settled) {
+                    removeAndNotifyOutstanding(delivery.deliveryTag);
+                }
+            }
+            for (Delivery delivery : settled) {
+                consumeEventListener.done(delivery, unackedMessages.size(), delivery.settleStart, delivery.processingStart);
+                if (prefetchController != null) {
+                    prefetchController.acked(delivery.settleStart - delivery.processingStart);
+                }
+            }
+            if (demandDriven) {
+                tryUpdatePrefetch();
+            }
+        }
+
+        private void removeAndNotifyOutstanding(long deliveryTag) {
+            unackedMessages.remove(deliveryTag);
         }
 
         synchronized void close() {
@@ -398,6 +739,9 @@ public class SingleChannelConsumer implements RabbitConsumer {
                     "channel", channel.toString(),
                     "consumerTag", consumerTag,
                     "unAckedMessages", unackedMessages.size());
+            //Send the acks that are held back by the ack coalescer without waiting for the flush interval
+            ackWorker.schedule(acks::flush);
+            discardPending();
             try {
                 channel.basicCancel(consumerTag);
             } catch (Exception e) {
@@ -414,41 +758,152 @@ public class SingleChannelConsumer implements RabbitConsumer {
                     "unAckedMessages", unackedMessages.size(),
                     "millisWaited", System.currentTimeMillis() - startTime,
                     "closeTimeout", closeTimeout), 5, 5, TimeUnit.SECONDS);
-            synchronized (unackedMessages) {
-
-                while (unackedMessages.size() > 0) {
-                    try {
-                        unackedMessages.wait(100);
-                    } catch (InterruptedException ignored) {
-                        log.warnWithParams("Close interrupted with un-acked messages still pending",
-                                "consumerTag", consumerTag,
-                                "unAckedMessages", unackedMessages.size());
-                        break;
-                    }
-                    //TODO maybe log the shutdown progress here??
-                    long timeWaited = System.currentTimeMillis() - startTime;
-                    if (closeTimeout > 0 && timeWaited >= closeTimeout) {
-                        log.warnWithParams("Close timeout reached with un-acked messages still pending",
-                                "channel", channel.toString(),
-                                "consumerTag", consumerTag,
-                                "millisWaited", timeWaited,
-                                "unAckedMessages", unackedMessages.size());
-                        break;
-                    }
+            try {
+                if (closeTimeout > 0) {
+                    unackedMessages.whenEmpty().get(closeTimeout, TimeUnit.MILLISECONDS);
+                } else {
+                    unackedMessages.whenEmpty().get();
                 }
+            } catch (InterruptedException ignored) {
+                log.warnWithParams("Close interrupted with un-acked messages still pending",
+                        "consumerTag", consumerTag,
+                        "unAckedMessages", unackedMessages.size());
+            } catch (TimeoutException | ExecutionException e) {
+                log.warnWithParams("Close timeout reached with un-acked messages still pending",
+                        "channel", channel.toString(),
+                        "consumerTag", consumerTag,
+                        "millisWaited", System.currentTimeMillis() - startTime,
+                        "unAckedMessages", unackedMessages.size());
             }
             log.infoWithParams("Closing the channel and stopping workers.");
             closeProgressWorker.unsubscribe();
-            unackedMessagesWorker.unsubscribe();
-            deliveryWorker.unsubscribe();
-            ackWorker.unsubscribe();
+            stopWorkers();
             channel.close();
         }
 
+        /**
+         * The consumer is replaced by a new one on a new channel, so all its workers are stopped. Acks for its
+         * deliveries that come in after this are dropped, the broker delivers those messages again.
+         */
         void closeWithError() {
+            stopping.set(true);
+            stopWorkers();
             channel.closeWithError();
         }
+
+        private void stopWorkers() {
+            unackedMessagesWorker.unsubscribe();
+            deliveryWorker.unsubscribe();
+            ackWorker.unsubscribe();
+            if (emitWorker != null) {
+                emitWorker.unsubscribe();
+            }
+        }
     }
-}
 
+    /**
+     * One delivery from the broker. It is the message handed to the subscriber, its acknowledger, the task that settles
+     * it on the ack thread and the event reported to the {@link ConsumeEventListener}, so a delivery only allocates
+     * this one object.
+     */
+    static class Delivery extends Message implements Acknowledger, Action0 {
+        private static final int UNSETTLED = 0;
+        private static final int ACKED = 1;
+        private static final int REJECTED = 2;
+        private static final AtomicIntegerFieldUpdater<Delivery> STATE = AtomicIntegerFieldUpdater.newUpdater(Delivery.class, "state");
+
+        final InternalConsumer consumer;
+        final long deliveryTag;
+        final long processingStart;
+        long settleStart; //written before the delivery is handed to the ack thread
+
+        private volatile int state = UNSETTLED; //This is here to prevent double acking
+
+        Delivery(InternalConsumer consumer, long deliveryTag, Envelope envelope, AMQP.BasicProperties headers, byte[] payload, long processingStart) {
+            super(envelope, headers, payload);
+            this.consumer = consumer;
+            this.deliveryTag = deliveryTag;
+            this.processingStart = processingStart;
+        }
+
+        @Override
+        public void ack() {
+            if (claim(true)) {
+                consumer.ackWorker.schedule(this);
+            }
+        }
+
+        @Override
+        public void reject() {
+            if (claim(false)) {
+                consumer.ackWorker.schedule(this);
+            }
+        }
+
+        /**
+         * @return true if the delivery was settled by this call, false if it has already been acked or rejected
+         */
+        boolean claim(boolean ack) {
+            if (!STATE.compareAndSet(this, UNSETTLED, ack ? ACKED : REJECTED)) {
+                log.infoWithParams(ack ? "Attempt to ack an already acked message will be ignored." : "Attempt to reject an already acked message will be ignored.",
+                        "deliveryTag", deliveryTag,
+                        "basicProperties", basicProperties.toString());
+                return false;
+            }
+            settleStart = System.currentTimeMillis();
+            return true;
+        }
+
+        boolean isAcked() {
+            return state == ACKED;
+        }
+
+        /**
+         * Called on the ack thread of the consumer after the delivery has been acked or rejected.
+         */
+        @Override
+        public void call() {
+            consumer.settle(this);
+        }
+    }
+
+    /**
+     * Settles all the messages of a batch with one task on the ack thread of each consumer the messages were received
+     * on, instead of one task and one ack frame per message.
+     */
+    static class BatchAcknowledger implements Acknowledger {
+        private final List<Message> messages;
+
+        BatchAcknowledger(List<Message> messages) {
+            this.messages = messages;
+        }
 
+        @Override
+        public void ack() {
+            settle(true);
+        }
+
+        @Override
+        public void reject() {
+            settle(false);
+        }
+
+        private void settle(boolean ack) {
+            //Nearly always all messages come from the same consumer, the map keeps the rare batches spanning a reconnect correct
+            final Map<InternalConsumer, List<Delivery>> byConsumer = new IdentityHashMap<>(2);
+            for (Message message : messages) {
+                if (message instanceof Delivery) {
+                    final Delivery delivery = (Delivery) message;
+                    if (delivery.claim(ack)) {
+                        byConsumer.computeIfAbsent(delivery.consumer, c -> new ArrayList<>(messages.size())).add(delivery);
+                    }
+                } else if (ack) {
+                    message.acknowledger.ack();
+                } else {
+                    message.acknowledger.reject();
+                }
+            }
+            byConsumer.forEach((consumer, deliveries) -> consumer.ackWorker.schedule(() -> consumer.settleAll(ack, deliveries)));
+        }
+    }
+}
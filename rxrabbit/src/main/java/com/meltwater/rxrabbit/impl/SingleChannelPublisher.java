@@ -1,37 +1,41 @@
 package com.meltwater.rxrabbit.impl;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalCause;
-import com.google.common.cache.RemovalNotification;
 import com.meltwater.rxrabbit.ChannelFactory;
 import com.meltwater.rxrabbit.Exchange;
+import com.meltwater.rxrabbit.NoopPublishEventListener;
 import com.meltwater.rxrabbit.Payload;
 import com.meltwater.rxrabbit.PublishChannel;
+import com.meltwater.rxrabbit.PublishCompletionMode;
 import com.meltwater.rxrabbit.PublishEvent;
 import com.meltwater.rxrabbit.PublishEventListener;
+import com.meltwater.rxrabbit.PublishLatencyRecorder;
+import com.meltwater.rxrabbit.PublishRequest;
+import com.meltwater.rxrabbit.PublishResult;
 import com.meltwater.rxrabbit.RabbitPublisher;
 import com.meltwater.rxrabbit.RoutingKey;
 import com.meltwater.rxrabbit.util.BackoffAlgorithm;
 import com.meltwater.rxrabbit.util.Logger;
+import com.meltwater.rxrabbit.util.PublishTransformer;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.ConfirmListener;
+import rx.Observable;
 import rx.Scheduler;
 import rx.Single;
 import rx.SingleSubscriber;
 import rx.Subscription;
 import rx.schedulers.Schedulers;
+import rx.subscriptions.Subscriptions;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static com.meltwater.rxrabbit.PublisherSettings.DEFAULT_STREAM_MAX_IN_FLIGHT;
 import static com.meltwater.rxrabbit.PublisherSettings.RETRY_FOREVER;
 
 //TODO javadoc
@@ -43,20 +47,28 @@ public class SingleChannelPublisher implements RabbitPublisher {
     private final int maxRetries;
     private final boolean publisherConfirms;
     private Scheduler observeOnScheduler;
+    private final PublishCompletionMode completionMode;
     private final long closeTimeoutMillis;
 
     private final ChannelFactory channelFactory;
     private final PublishEventListener metricsReporter;
+    private final boolean reportEvents;
+    private final PublishLatencyRecorder latencyRecorder;
 
     private final Scheduler.Worker ackWorker;
     private final Scheduler.Worker publishWorker;
-    private final Scheduler.Worker cacheCleanupWorker;
+    private final Scheduler.Worker confirmTimeoutWorker;
 
-    private final Cache<Long, UnconfirmedMessage> tagToMessage;
+    private final long confirmsTimeoutMillis;
+    private final SequenceWindow<UnconfirmedMessage> tagToMessage = new SequenceWindow<>();
+    private final InFlightLimiter inFlight;
+    private final int maxInFlight;
     private final AtomicLong largestSeqSeen = new AtomicLong(0);
     private final AtomicLong seqOffset = new AtomicLong(0);
 
     private PublishChannel channel = null;
+    private volatile boolean healthy = true;
+    private final AtomicBoolean reconnecting = new AtomicBoolean(false);
     private AtomicBoolean closed = new AtomicBoolean(false);
 
     private final BackoffAlgorithm backoffAlgorithm;
@@ -68,28 +80,66 @@ public class SingleChannelPublisher implements RabbitPublisher {
                                   PublishEventListener metricsReporter,
                                   long confirmsTimeoutSec,
                                   long closeTimeoutMillis,
-                                  long cacheCleanupTriggerSecs, BackoffAlgorithm backoffAlgorithm) {
+                                  long confirmTimeoutCheckSecs, BackoffAlgorithm backoffAlgorithm) {
+        this(channelFactory, publisherConfirms, maxRetries, observeOnScheduler, metricsReporter, confirmsTimeoutSec, closeTimeoutMillis, confirmTimeoutCheckSecs, backoffAlgorithm, 0, 0);
+    }
+
+    public SingleChannelPublisher(ChannelFactory channelFactory,
+                                  boolean publisherConfirms,
+                                  int maxRetries,
+                                  Scheduler observeOnScheduler,
+                                  PublishEventListener metricsReporter,
+                                  long confirmsTimeoutSec,
+                                  long closeTimeoutMillis,
+                                  long confirmTimeoutCheckSecs,
+                                  BackoffAlgorithm backoffAlgorithm,
+                                  int maxInFlight,
+                                  long maxInFlightBytes) {
+        this(channelFactory, publisherConfirms, maxRetries, observeOnScheduler, metricsReporter, confirmsTimeoutSec, closeTimeoutMillis, confirmTimeoutCheckSecs, backoffAlgorithm, maxInFlight, maxInFlightBytes, PublishCompletionMode.OBSERVE_ON, null);
+    }
+
+    /**
+     * @param maxInFlight the max number of messages that can be in flight (published but not yet confirmed or waiting for re-try), 0 for no limit
+     * @param maxInFlightBytes the max number of payload bytes that can be in flight, 0 for no limit
+     * @param completionMode on which thread the returned singles complete
+     * @param latencyRecorder where the latencies of the publish stages are recorded, null to not record latencies
+     */
+    public SingleChannelPublisher(ChannelFactory channelFactory,
+                                  boolean publisherConfirms,
+                                  int maxRetries,
+                                  Scheduler observeOnScheduler,
+                                  PublishEventListener metricsReporter,
+                                  long confirmsTimeoutSec,
+                                  long closeTimeoutMillis,
+                                  long confirmTimeoutCheckSecs,
+                                  BackoffAlgorithm backoffAlgorithm,
+                                  int maxInFlight,
+                                  long maxInFlightBytes,
+                                  PublishCompletionMode completionMode,
+                                  PublishLatencyRecorder latencyRecorder) {
         this.channelFactory = channelFactory;
         this.publisherConfirms = publisherConfirms;
         this.maxRetries = maxRetries;
         this.observeOnScheduler = observeOnScheduler;
         this.closeTimeoutMillis = closeTimeoutMillis;
+        this.confirmsTimeoutMillis = TimeUnit.SECONDS.toMillis(confirmsTimeoutSec);
         this.metricsReporter = metricsReporter;
+        this.reportEvents = !(metricsReporter instanceof NoopPublishEventListener);
         this.backoffAlgorithm = backoffAlgorithm;
+        this.inFlight = new InFlightLimiter(maxInFlight, maxInFlightBytes);
+        this.maxInFlight = maxInFlight;
+        this.completionMode = completionMode;
+        this.latencyRecorder = latencyRecorder;
 
         this.publishWorker = Schedulers.io().createWorker();
         final long instanceNr = publisherInstanceNr.incrementAndGet();
         publishWorker.schedule(() -> Thread.currentThread().setName("rabbit-send-thread-"+instanceNr));
         this.ackWorker = Schedulers.io().createWorker();
         ackWorker.schedule(() -> Thread.currentThread().setName("rabbit-confirm-thread-"+instanceNr));
-        this.cacheCleanupWorker = Schedulers.io().createWorker();
-        cacheCleanupWorker.schedule(() -> Thread.currentThread().setName("cache-cleanup-"+instanceNr));
-        this.tagToMessage = CacheBuilder.<Long, UnconfirmedMessage>newBuilder()
-                .expireAfterAccess(confirmsTimeoutSec, TimeUnit.SECONDS)
-                .removalListener(this::handleCacheRemove)
-                .build();
+        this.confirmTimeoutWorker = Schedulers.io().createWorker();
+        confirmTimeoutWorker.schedule(() -> Thread.currentThread().setName("confirm-timeout-"+instanceNr));
         if (publisherConfirms) {
-            cacheCleanupWorker.schedulePeriodically(tagToMessage::cleanUp, cacheCleanupTriggerSecs, cacheCleanupTriggerSecs, TimeUnit.SECONDS);
+            confirmTimeoutWorker.schedulePeriodically(this::handleConfirmTimeouts, confirmTimeoutCheckSecs, confirmTimeoutCheckSecs, TimeUnit.SECONDS);
         }
     }
 
@@ -97,7 +147,10 @@ public class SingleChannelPublisher implements RabbitPublisher {
     @Override
     public synchronized void close() throws IOException {
         closed.set(true);
-        log.infoWithParams("Closing publisher.", "nonConfirmedMessages", tagToMessage.asMap().size());
+        log.infoWithParams("Closing publisher.",
+                "nonConfirmedMessages", tagToMessage.size(),
+                "waitingForInFlightWindow", inFlight.getWaiting());
+        inFlight.startAllWaiting();
         try {
             if (channel != null && publisherConfirms) {
                 boolean allConfirmed = closeTimeoutMillis > 0 ? channel.waitForConfirms(closeTimeoutMillis) : channel.waitForConfirms();
@@ -109,20 +162,20 @@ public class SingleChannelPublisher implements RabbitPublisher {
             log.warnWithParams("Error when waiting for confirms.",
                     "channelId", channel!=null?channel.getChannelNumber()+"":"null",
                     "closeTimeoutMillis", closeTimeoutMillis,
-                    "nonConfirmedMessages", tagToMessage.asMap().size(),
+                    "nonConfirmedMessages", tagToMessage.size(),
                     "error", e);
         }finally {
-            cacheCleanupWorker.unsubscribe();
+            confirmTimeoutWorker.unsubscribe();
             //TODO not covered in tests - add test!
-            if (tagToMessage.asMap().size()>0) {
+            if (tagToMessage.size()>0) {
                 log.warnWithParams("Not all messages were confirmed during the close timeout",
                         "closeTimeoutMillis", closeTimeoutMillis,
-                        "nonConfirmedMessages", tagToMessage.asMap().size());
-                for (Map.Entry<Long,UnconfirmedMessage> entry :tagToMessage.asMap().entrySet()){
-                    entry.getValue().nack(new IllegalStateException("The publisher is closed and will not accept any more messages."));
+                        "nonConfirmedMessages", tagToMessage.size());
+                List<UnconfirmedMessage> unconfirmed = new ArrayList<>();
+                tagToMessage.removeAll(unconfirmed);
+                for (UnconfirmedMessage message : unconfirmed){
+                    message.nack(new IllegalStateException("The publisher is closed and will not accept any more messages."));
                 }
-                tagToMessage.invalidateAll();
-                tagToMessage.cleanUp();
             }
             if(channel != null){
                 channel.close();
@@ -132,10 +185,108 @@ public class SingleChannelPublisher implements RabbitPublisher {
         }
     }
 
+    /**
+     * Publishes the message on the send thread. If the in flight window is full the publish is delayed until
+     * enough earlier messages have been confirmed.
+     */
     @Override
     public Single<Void> call(Exchange exchange, RoutingKey routingKey, AMQP.BasicProperties basicProperties, Payload payload) {
-        return Single.<Void>create(subscriber -> schedulePublish(exchange, routingKey, basicProperties, payload, 1, 0, subscriber))
-                .observeOn(observeOnScheduler);
+        return observe(publishUnobserved(exchange, routingKey, basicProperties, payload));
+    }
+
+    /**
+     * Publishes all the messages in the batch back to back from one task on the send thread, holding the publisher
+     * lock once for the whole batch. The messages will therefore get a contiguous range of confirm sequence numbers.
+     *
+     * Messages that fail are re-tried one by one.
+     */
+    @Override
+    public Single<Void> call(List<PublishRequest> requests) {
+        return observe(Single.create(subscriber ->
+                inFlight.acquire(requests.size(), totalSize(requests), () -> scheduleBatchPublish(requests, subscriber))));
+    }
+
+    /**
+     * Publishes the stream with at most max in flight (or {@link com.meltwater.rxrabbit.PublisherSettings#DEFAULT_STREAM_MAX_IN_FLIGHT}
+     * if there is no limit) messages in flight. The results are moved to the observe on scheduler once for the whole stream
+     * instead of once per message.
+     */
+    @Override
+    public Observable<PublishResult> publishStream(Observable<PublishRequest> requests) {
+        return observeResults(requests
+                .compose(new PublishTransformer(r -> publishUnobserved(r.exchange, r.routingKey, r.basicProperties, r.payload), streamMaxInFlight(maxInFlight, 1))));
+    }
+
+    /**
+     * @return the max number of messages in flight when a stream is published over the given number of publishers
+     * that each have the given max in flight
+     */
+    static int streamMaxInFlight(int maxInFlight, int publishers) {
+        return maxInFlight > 0 ? maxInFlight * publishers : DEFAULT_STREAM_MAX_IN_FLIGHT;
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Moves the results of a published stream to the observe on scheduler, if that is the completion mode.
+     */
+    Observable<PublishResult> observeResults(Observable<PublishResult> results) {
+        return completionMode == PublishCompletionMode.OBSERVE_ON ? results.observeOn(observeOnScheduler) : results;
+    }
+
+    private Single<Void> observe(Single<Void> publish) {
+        return completionMode == PublishCompletionMode.OBSERVE_ON ? publish.observeOn(observeOnScheduler) : publish;
+    }
+
+    /**
+     * Completes the given subscribers from one task on the observe on scheduler.
+     */
+    private void completeAll(List<SingleSubscriber<? super Void>> subscribers) {
+        if (subscribers == null || subscribers.isEmpty()) {
+            return;
+        }
+        final Scheduler.Worker worker = observeOnScheduler.createWorker();
+        worker.schedule(() -> {
+            try {
+                for (SingleSubscriber<? super Void> subscriber : subscribers) {
+                    subscriber.onSuccess(null);
+                }
+            } finally {
+                worker.unsubscribe();
+            }
+        });
+    }
+
+    /**
+     * @return the number of messages that have been accepted for publishing but are not yet confirmed or finally failed
+     */
+    public int getMessagesInFlight() {
+        return inFlight.getMessages();
+    }
+
+    /**
+     * @return the number of messages in flight plus the number of messages waiting for room in the in flight window
+     */
+    public int getLoad() {
+        return inFlight.getLoad();
+    }
+
+    /**
+     * @return false if the publisher is closed or if the channel is broken and has not yet been re-created
+     */
+    public boolean isHealthy() {
+        return healthy && !closed.get();
+    }
+
+    /**
+     * Like {@link #call(Exchange, RoutingKey, AMQP.BasicProperties, Payload)}, but the returned single completes on the
+     * confirm thread regardless of the completion mode.
+     */
+    Single<Void> publishUnobserved(Exchange exchange, RoutingKey routingKey, AMQP.BasicProperties basicProperties, Payload payload) {
+        return Single.create(subscriber ->
+                inFlight.acquire(1, payload.size(), () -> schedulePublish(exchange, routingKey, basicProperties, payload, 1, 0, subscriber)));
     }
 
     public Subscription schedulePublish(Exchange exchange,
@@ -145,56 +296,152 @@ public class SingleChannelPublisher implements RabbitPublisher {
                                         int attempt,
                                         int delayMs,
                                         SingleSubscriber<? super Void> subscriber) {
-        if (closed.get()) subscriber.onError(new IllegalStateException("The publisher is closed and will not accept any more messages."));
+        if (closed.get()) {
+            inFlight.release(1, payload.size());
+            subscriber.onError(new IllegalStateException("The publisher is closed and will not accept any more messages."));
+            return Subscriptions.unsubscribed();
+        }
         long schedulingStart = System.currentTimeMillis();
-        return publishWorker.schedule(() -> basicPublish(exchange, routingKey, props, payload, attempt, subscriber, schedulingStart), delayMs, TimeUnit.MILLISECONDS);
+        long scheduledAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        return publishWorker.schedule(() -> basicPublish(exchange, routingKey, props, payload, attempt, subscriber, schedulingStart, scheduledAtNanos), delayMs, TimeUnit.MILLISECONDS);
     }
 
-    private synchronized void basicPublish(Exchange exchange, RoutingKey routingKey, AMQP.BasicProperties props, Payload payload, int attempt, SingleSubscriber<? super Void> subscriber, long schedulingStart) {
-        final long publishStart = System.currentTimeMillis();
-        UnconfirmedMessage message = new UnconfirmedMessage(this, subscriber,
+    private Subscription scheduleBatchPublish(List<PublishRequest> requests, SingleSubscriber<? super Void> subscriber) {
+        if (closed.get()) {
+            inFlight.release(requests.size(), totalSize(requests));
+            subscriber.onError(new IllegalStateException("The publisher is closed and will not accept any more messages."));
+            return Subscriptions.unsubscribed();
+        }
+        if (requests.isEmpty()) {
+            subscriber.onSuccess(null);
+            return Subscriptions.unsubscribed();
+        }
+        long schedulingStart = System.currentTimeMillis();
+        long scheduledAtNanos = System.nanoTime();
+        BatchSubscriber batchSubscriber = new BatchSubscriber(subscriber, requests.size());
+        return publishWorker.schedule(() -> basicPublishBatch(requests, batchSubscriber, schedulingStart, scheduledAtNanos));
+    }
+
+    private synchronized void basicPublish(Exchange exchange, RoutingKey routingKey, AMQP.BasicProperties props, Payload payload, int attempt, SingleSubscriber<? super Void> subscriber, long schedulingStart, long scheduledAtNanos) {
+        UnconfirmedMessage message = createMessage(exchange, routingKey, props, payload, attempt, subscriber, schedulingStart, scheduledAtNanos);
+        final PublishChannel publishChannel;
+        try {
+            publishChannel = getChannel();
+        } catch (Exception error) {
+            handleChannelException(message,
+                    error,
+                    "Error when creating channel. The connection and the channel is now considered broken.");
+            return;
+        }
+        List<SingleSubscriber<? super Void>> completed = unconfirmedCompletions(1);
+        publish(publishChannel, message, completed);
+        completeAll(completed);
+    }
+
+    private synchronized void basicPublishBatch(List<PublishRequest> requests, SingleSubscriber<? super Void> subscriber, long schedulingStart, long scheduledAtNanos) {
+        List<UnconfirmedMessage> messages = new ArrayList<>(requests.size());
+        for (PublishRequest request : requests) {
+            messages.add(createMessage(request.exchange, request.routingKey, request.basicProperties, request.payload, 1, subscriber, schedulingStart, scheduledAtNanos));
+        }
+        PublishChannel publishChannel;
+        try {
+            publishChannel = getChannel();
+        } catch (Exception error) {
+            handleChannelException(messages.get(0),
+                    error,
+                    "Error when creating channel. The connection and the channel is now considered broken.");
+            nackAll(messages.subList(1, messages.size()), error);
+            return;
+        }
+        List<SingleSubscriber<? super Void>> completed = unconfirmedCompletions(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            Exception error = publish(publishChannel, messages.get(i), completed);
+            if (error != null) {
+                //The channel is closed now so the rest of the batch is re-tried message by message
+                nackAll(messages.subList(i + 1, messages.size()), error);
+                break;
+            }
+        }
+        completeAll(completed);
+    }
+
+    /**
+     * @return the list to collect the subscribers of messages that complete when they are written, if they are to be
+     * completed together on the observe on scheduler, null if they are completed right away
+     */
+    private List<SingleSubscriber<? super Void>> unconfirmedCompletions(int size) {
+        return !publisherConfirms && completionMode == PublishCompletionMode.BATCHED ? new ArrayList<>(size) : null;
+    }
+
+    private UnconfirmedMessage createMessage(Exchange exchange, RoutingKey routingKey, AMQP.BasicProperties props, Payload payload, int attempt, SingleSubscriber<? super Void> subscriber, long schedulingStart, long scheduledAtNanos) {
+        return new UnconfirmedMessage(this, subscriber,
                 exchange,
                 routingKey,
                 props,
                 payload,
                 backoffAlgorithm,
+                publisherConfirms,
                 schedulingStart,
-                publishStart,
+                System.currentTimeMillis(),
+                scheduledAtNanos,
                 attempt);
-        long seqNo;
-        try {
-            seqNo = getChannel().getNextPublishSeqNo();
-        } catch (Exception error) {
-            handleChannelException(exchange,
-                    routingKey,
-                    props,
-                    message,
-                    error,
-                    "Error when creating channel. The connection and the channel is now considered broken.");
-            return;
-        }
-        final long internalSeqNr = seqNo + seqOffset.get();
+    }
+
+    /**
+     * @param completed where to add the subscriber if the message completes when it is written, null to complete it right away
+     * @return the error if the publish failed, null otherwise
+     */
+    private Exception publish(PublishChannel publishChannel, UnconfirmedMessage message, List<SingleSubscriber<? super Void>> completed) {
+        final long internalSeqNr = publishChannel.getNextPublishSeqNo() + seqOffset.get();
         if (largestSeqSeen.get() < internalSeqNr) {
             largestSeqSeen.set(internalSeqNr);
         }
+        boolean stored = false;
         try {
             beforePublish(message);
-            getChannel().basicPublish(exchange.name, routingKey.value, props, payload.data);
-            message.setPublishCompletedAtTimestamp(System.currentTimeMillis());
-            message.setPublished(true);
-            afterPublish(message);
+            if (latencyRecorder != null) {
+                message.writeStartedAtNanos = System.nanoTime();
+                latencyRecorder.recordScheduling(message.writeStartedAtNanos - message.scheduledAtNanos);
+            }
             if (publisherConfirms) {
-                tagToMessage.put(internalSeqNr, message);
-            }else{
-                message.ack();
+                //Stored before the actual publish so that a fast confirm can never miss the message
+                tagToMessage.put(internalSeqNr, message, System.currentTimeMillis());
+                stored = true;
             }
+            publishChannel.basicPublish(message.exchange.name, message.routingKey.value, message.basicProperties, message.payload.data);
+            if (latencyRecorder != null) {
+                latencyRecorder.recordWrite(System.nanoTime() - message.writeStartedAtNanos);
+            }
+            message.setPublished(System.currentTimeMillis(), reportEvents);
+            afterPublish(message);
+            if (!publisherConfirms) {
+                message.ack(completed);
+            }
+            return null;
         } catch (Exception error) {
-            handleChannelException(exchange,
-                    routingKey,
-                    props,
-                    message,
+            //A stored message that is no longer stored has already timed out and been handed over for re-try
+            boolean stillUnconfirmed = !stored || tagToMessage.remove(internalSeqNr) != null;
+            logAndCloseChannel(message,
                     error,
                     "Error when calling basicPublish. The connection and the channel is now considered broken.");
+            if (stillUnconfirmed) {
+                message.nack(error);
+            }
+            return error;
+        }
+    }
+
+    private static long totalSize(List<PublishRequest> requests) {
+        long size = 0;
+        for (PublishRequest request : requests) {
+            size += request.payload.size();
+        }
+        return size;
+    }
+
+    private void nackAll(List<UnconfirmedMessage> messages, Exception error) {
+        for (UnconfirmedMessage message : messages) {
+            message.nack(error);
         }
     }
 
@@ -202,17 +449,21 @@ public class SingleChannelPublisher implements RabbitPublisher {
         if (channel==null){
             for (int attempt = 1; attempt <= maxRetries || maxRetries==RETRY_FOREVER; attempt++) {
                 try {
-                    try {
-                        Thread.sleep(backoffAlgorithm.getDelayMs(attempt - 1));
-                    } catch (InterruptedException ignored) {}
+                    if (attempt > 1) {
+                        try {
+                            Thread.sleep(backoffAlgorithm.getDelayMs(attempt - 1));
+                        } catch (InterruptedException ignored) {}
+                    }
                     log.infoWithParams("Creating publish channel.");
                     this.channel = channelFactory.createPublishChannel();
                     if (publisherConfirms){
                         channel.confirmSelect();
-                        channel.addConfirmListener(new InternalConfirmListener(ackWorker,this));
+                        channel.addConfirmListener(new InternalConfirmListener(ackWorker, this, seqOffset.get()));
                     }
+                    healthy = true;
                     break;
                 } catch (Exception e) {
+                    healthy = false;
                     if (attempt < maxRetries || maxRetries == RETRY_FOREVER) {
                         log.warnWithParams("Failed to create connection. Will try to re-connect again.",
                             "error", e,
@@ -234,44 +485,57 @@ public class SingleChannelPublisher implements RabbitPublisher {
             channel = null;
         }
         seqOffset.set(largestSeqSeen.get());
+        healthy = false;
+        if (reconnecting.compareAndSet(false, true)) {
+            scheduleReconnect(0);
+        }
     }
 
-    private synchronized Collection<Long> getAllPreviousTags(long deliveryTag, boolean multiple) {
-        final long currOffset = seqOffset.get();
-        long internalTag = deliveryTag + currOffset;
-        Collection<Long> confirmedTags = new ArrayList<>();
-        if (multiple) {
-            confirmedTags = new ArrayList<>(new TreeMap<>(tagToMessage.asMap())
-                    .tailMap(currOffset) //Since we don't want to ack old messages
-                    .headMap(internalTag)
-                    .keySet());
+    /**
+     * Re-creates a broken channel in the background so that the publisher becomes healthy again
+     * even if it is not given any new messages while it is broken.
+     */
+    private void scheduleReconnect(int delayMs) {
+        if (closed.get()) {
+            return;
         }
-        confirmedTags.add(internalTag);
-        return confirmedTags;
+        publishWorker.schedule(() -> {
+            try {
+                getChannel();
+                reconnecting.set(false);
+            } catch (Exception e) {
+                scheduleReconnect(backoffAlgorithm.getDelayMs(1));
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void handleChannelException(UnconfirmedMessage message, Exception e, String logMsg) {
+        logAndCloseChannel(message, e, logMsg);
+        message.nack(e);
     }
 
-    private void handleChannelException(Exchange exchange, RoutingKey routingKey, AMQP.BasicProperties props, UnconfirmedMessage message, Exception e, String logMsg) {
+    private void logAndCloseChannel(UnconfirmedMessage message, Exception e, String logMsg) {
         //TODO should we look at the error and do different things depending on the type??
         log.errorWithParams(logMsg,
-                "exchange", exchange,
+                "exchange", message.exchange,
                 "error", e,
-                "routingKey", routingKey,
-                "basicProperties", props);
+                "routingKey", message.routingKey,
+                "basicProperties", message.basicProperties);
         closeChannelWithError();
-        message.nack(e);
     }
 
-    private void handleCacheRemove(RemovalNotification<Long, UnconfirmedMessage> notification) {
-        if (notification.getCause().equals(RemovalCause.EXPIRED)) {
-            UnconfirmedMessage message = notification.getValue();
-            if (message != null) { //TODO figure out why this can be null??
-                ackWorker.schedule(() -> {
+    private void handleConfirmTimeouts() {
+        List<UnconfirmedMessage> expired = new ArrayList<>();
+        tagToMessage.removeExpired(System.currentTimeMillis() - confirmsTimeoutMillis, expired);
+        if (!expired.isEmpty()) {
+            ackWorker.schedule(() -> {
+                for (UnconfirmedMessage message : expired) {
                     if (message.published) {
-                        log.warnWithParams("Message did not receive publish-confirm in time", "messageId", message.props.getMessageId());
+                        log.warnWithParams("Message did not receive publish-confirm in time", "messageId", message.basicProperties.getMessageId());
                     }
                     message.nack(new TimeoutException("Message did not receive publish confirm in time"));
-                });
-            }
+                }
+            });
         }
     }
 
@@ -280,97 +544,155 @@ public class SingleChannelPublisher implements RabbitPublisher {
     }
 
     private void beforePublish(UnconfirmedMessage message){
-        metricsReporter.beforePublish(getEvent(message));
+        if (reportEvents) {
+            metricsReporter.beforePublish(message);
+        }
     }
 
     private void afterPublish(UnconfirmedMessage message) {
-        metricsReporter.afterPublish(getEvent(message));
+        if (reportEvents) {
+            metricsReporter.afterPublish(message.event);
+        }
     }
 
     private void afterFinalFail(UnconfirmedMessage message, Exception e) {
-        metricsReporter.afterFinalFail(getEvent(message), e);
+        if (reportEvents) {
+            metricsReporter.afterFinalFail(message.event, e);
+        }
     }
 
     private void afterIntermediateFail(UnconfirmedMessage message, Exception e, int delayMs) {
-        metricsReporter.afterIntermediateFail(getEvent(message), e, delayMs);
+        if (reportEvents) {
+            metricsReporter.afterIntermediateFail(message.event, e, delayMs);
+        }
     }
 
     private void afterAck(UnconfirmedMessage message) {
-        metricsReporter.afterConfirm(getEvent(message));
-    }
-
-    private PublishEvent getEvent(UnconfirmedMessage message) {
-        return new PublishEvent(message.payload,
-                message.exchange,
-                message.routingKey,
-                message.props,
-                message.attempt,
-                publisherConfirms,
-                message.createdAtTimestamp,
-                message.publishedAtTimestamp,
-                message.publishCompletedAtTimestamp);
+        if (reportEvents) {
+            metricsReporter.afterConfirm(message.event);
+        }
     }
 
+    /**
+     * Resolves broker confirms for one channel. The sequence numbers of a channel start at 1, so the internal sequence
+     * number of a confirmed message is the delivery tag plus the offset that was in use when the channel was created.
+     *
+     * A multiple confirm only walks the range of sequence numbers it covers, from the first one published on this
+     * channel up to the delivery tag, so the cost grows with the number of confirmed messages and not with the number of
+     * messages in flight. Messages published on earlier channels are never confirmed here, they are left to time out and be re-tried.
+     */
     static class InternalConfirmListener implements ConfirmListener{
 
         final Scheduler.Worker ackWorker;
         final SingleChannelPublisher publisher;
+        final long seqOffset;
 
-        InternalConfirmListener(Scheduler.Worker ackWorker, SingleChannelPublisher publisher) {
+        //Only touched from the ackWorker so it can be re-used between confirms
+        private final List<UnconfirmedMessage> confirmed = new ArrayList<>();
+        private final boolean batchCompletions;
+
+        InternalConfirmListener(Scheduler.Worker ackWorker, SingleChannelPublisher publisher, long seqOffset) {
             this.ackWorker = ackWorker;
             this.publisher = publisher;
+            this.seqOffset = seqOffset;
+            this.batchCompletions = publisher.completionMode == PublishCompletionMode.BATCHED;
         }
 
         @Override
         public void handleAck(long deliveryTag, boolean multiple) {
             ackWorker.schedule(() -> {
-                for (Long k : publisher.getAllPreviousTags(deliveryTag, multiple)) {
-                    log.traceWithParams("Handling confirm-ack for delivery tag",
-                            "deliveryTag", deliveryTag,
-                            "tag", k,
-                            "multiple", multiple);
-                    final UnconfirmedMessage remove = publisher.tagToMessage.getIfPresent(k);
-                    if(remove != null){
-                        publisher.tagToMessage.invalidate(k);
-                        remove.ack();
+                removeConfirmed(deliveryTag, multiple);
+                log.traceWithParams("Handling confirm-ack for delivery tag",
+                        "deliveryTag", deliveryTag,
+                        "multiple", multiple,
+                        "confirmed", confirmed.size());
+                if (batchCompletions) {
+                    List<SingleSubscriber<? super Void>> completed = new ArrayList<>(confirmed.size());
+                    for (UnconfirmedMessage message : confirmed) {
+                        message.ack(completed);
+                    }
+                    publisher.completeAll(completed);
+                } else {
+                    for (UnconfirmedMessage message : confirmed) {
+                        message.ack();
                     }
                 }
+                confirmed.clear();
             });
         }
         @Override
         public void handleNack(long deliveryTag, boolean multiple) {
             //TODO not covered in tests -  add test!
             ackWorker.schedule(() -> {
-                for (Long k : publisher.getAllPreviousTags(deliveryTag, multiple)) {
-                    log.traceWithParams("Handling confirm-nack for delivery tag",
-                            "deliveryTag", deliveryTag,
-                            "tag", k,
-                            "multiple", multiple);
-                    final UnconfirmedMessage remove = publisher.tagToMessage.getIfPresent(k);
-                    if(remove != null){
-                        publisher.tagToMessage.invalidate(k);
-                        remove.nack(new IOException("Publisher sent nack on confirm return. deliveryTag=" + deliveryTag));
-                    }
+                removeConfirmed(deliveryTag, multiple);
+                log.traceWithParams("Handling confirm-nack for delivery tag",
+                        "deliveryTag", deliveryTag,
+                        "multiple", multiple,
+                        "nacked", confirmed.size());
+                for (UnconfirmedMessage message : confirmed) {
+                    message.nack(new IOException("Publisher sent nack on confirm return. deliveryTag=" + deliveryTag));
                 }
+                confirmed.clear();
             });
         }
 
+        private void removeConfirmed(long deliveryTag, boolean multiple) {
+            final long internalTag = deliveryTag + seqOffset;
+            if (multiple) {
+                publisher.tagToMessage.removeRange(seqOffset + 1, internalTag, confirmed);
+            } else {
+                final UnconfirmedMessage message = publisher.tagToMessage.remove(internalTag);
+                if (message != null) {
+                    confirmed.add(message);
+                }
+            }
+        }
+
     }
 
-    static class UnconfirmedMessage {
+    /**
+     * Shared by all the messages in a batch. Reports success when every message has been published and
+     * reports the first error if any of them ultimately fails.
+     */
+    static class BatchSubscriber extends SingleSubscriber<Void> {
+        private final SingleSubscriber<? super Void> actual;
+        private final AtomicInteger remaining;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        BatchSubscriber(SingleSubscriber<? super Void> actual, int size) {
+            this.actual = actual;
+            this.remaining = new AtomicInteger(size);
+        }
+
+        @Override
+        public void onSuccess(Void value) {
+            if (remaining.decrementAndGet() == 0 && !done.getAndSet(true)) {
+                actual.onSuccess(null);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            if (!done.getAndSet(true)) {
+                actual.onError(error);
+            }
+        }
+    }
+
+    /**
+     * A publish attempt that has not been confirmed yet. It is also the event given to the publish event listener
+     * before the message is written, so only one event is allocated per written message, and only if events are reported.
+     */
+    static class UnconfirmedMessage extends PublishEvent {
         final SingleChannelPublisher publisher;
-        final Payload payload;
-        final RoutingKey routingKey;
-        final Exchange exchange;
-        final AMQP.BasicProperties props;
         final SingleSubscriber<? super Void> subscriber;
         final BackoffAlgorithm backoffAlgorithm;
-        final long createdAtTimestamp;
-        final long publishedAtTimestamp;
-        final int attempt;
+        final long scheduledAtNanos;
 
         boolean published = false;
-        long publishCompletedAtTimestamp;
+        //The event reported about this attempt, replaced by one with the publish completed timestamp once it is written
+        PublishEvent event = this;
+        long writeStartedAtNanos;
 
         UnconfirmedMessage(SingleChannelPublisher publisher,
                            SingleSubscriber<? super Void> subscriber,
@@ -379,32 +701,44 @@ public class SingleChannelPublisher implements RabbitPublisher {
                            AMQP.BasicProperties props,
                            Payload payload,
                            BackoffAlgorithm backoffAlgorithm,
+                           boolean publisherConfirms,
                            long createdAtTimestamp,
                            long publishedAtTimestamp,
+                           long scheduledAtNanos,
                            int attempt) {
+            super(payload, exchange, routingKey, props, attempt, publisherConfirms, createdAtTimestamp, publishedAtTimestamp, 0);
+            this.scheduledAtNanos = scheduledAtNanos;
             this.publisher = publisher;
-            this.exchange = exchange;
-            this.payload = payload;
             this.subscriber = subscriber;
-            this.routingKey = routingKey;
-            this.props = props;
             this.backoffAlgorithm = backoffAlgorithm;
-            this.createdAtTimestamp = createdAtTimestamp;
-            this.publishedAtTimestamp = publishedAtTimestamp;
-            this.attempt = attempt;
         }
 
-        public void setPublishCompletedAtTimestamp(long time) {
-            this.publishCompletedAtTimestamp = time;
+        void setPublished(long publishCompletedAtTimestamp, boolean reportEvents) {
+            this.published = true;
+            if (reportEvents) {
+                this.event = new PublishEvent(payload, exchange, routingKey, basicProperties, attempt, publisherConfirms,
+                        createdAtTimestamp, publishedAtTimestamp, publishCompletedAtTimestamp);
+            }
         }
 
-        public void setPublished(boolean published) {
-            this.published = published;
+        public void ack() {
+            ack(null);
         }
 
-        public void ack() {
+        /**
+         * @param completed if not null the subscriber is added to this list instead of being completed directly
+         */
+        void ack(List<SingleSubscriber<? super Void>> completed) {
+            if (publisher.latencyRecorder != null && publisherConfirms) {
+                publisher.latencyRecorder.recordConfirm(System.nanoTime() - writeStartedAtNanos);
+            }
             publisher.afterAck(this);
-            subscriber.onSuccess(null);
+            publisher.inFlight.release(1, payload.size());
+            if (completed != null) {
+                completed.add(subscriber);
+            } else {
+                subscriber.onSuccess(null);
+            }
         }
 
         public void nack(Exception e) {
@@ -412,9 +746,10 @@ public class SingleChannelPublisher implements RabbitPublisher {
             if (attempt < maxRetries || maxRetries == RETRY_FOREVER) {
                 int delayMs = backoffAlgorithm.getDelayMs(attempt);
                 publisher.afterIntermediateFail(this, e, delayMs);
-                publisher.schedulePublish(exchange, routingKey, props, payload, attempt + 1, delayMs, subscriber);
+                publisher.schedulePublish(exchange, routingKey, basicProperties, payload, attempt + 1, delayMs, subscriber);
             } else {
                 publisher.afterFinalFail(this, e);
+                publisher.inFlight.release(1, payload.size());
                 subscriber.onError(e);
             }
         }
@@ -0,0 +1,207 @@
+package com.meltwater.rxrabbit.impl;
+
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps track of the deliveries on one channel that have not been acked or nacked yet, together with the time
+ * they were received.
+ *
+ * The receive timestamps are stored in a ring buffer of primitive longs indexed by delivery tag. As the broker never
+ * has more than prefetch count deliveries outstanding the ring normally stays at its initial size. When a single
+ * delivery is left un-acked while a lot of later deliveries are acked the ring only grows as long as it is densely
+ * used, after that the stragglers at its low end are moved to a sparse overflow map. This keeps the memory bounded
+ * by the number of outstanding deliveries instead of by the distance to the oldest one.
+ *
+ * Delivery tags are handed out in the order the messages are received, so the oldest outstanding delivery is always
+ * the one with the lowest tag.
+ */
+class UnackedDeliveries {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final long EMPTY = 0;
+
+    private final TreeMap<Long, Long> overflow = new TreeMap<>(); //the outstanding deliveries below head
+
+    private long[] receivedAt;
+    private int mask;
+    private long head = -1; //the lowest tag in the ring that may be outstanding
+    private long tail = -1; //one more than the highest tag that has been added
+    private int ringSize = 0;
+    private volatile int size = 0;
+
+    private CompletableFuture<Void> whenEmpty = null;
+
+    private long emptySince = System.currentTimeMillis();
+    private long emptyMillis = 0; //the time spent empty that has not been taken yet, excluding the current empty period
+
+    UnackedDeliveries(int expectedOutstanding) {
+        int capacity = 16;
+        while (capacity < expectedOutstanding && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        this.receivedAt = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    synchronized void put(long deliveryTag, long receivedAtMillis) {
+        assert receivedAtMillis != EMPTY;
+        if (size == 0) {
+            head = deliveryTag;
+            tail = deliveryTag;
+            emptyMillis += Math.max(0, receivedAtMillis - emptySince);
+        }
+        if (deliveryTag < head) {
+            if (overflow.put(deliveryTag, receivedAtMillis) == null) {
+                size++;
+            }
+            return;
+        }
+        ensureCapacity(deliveryTag);
+        final int index = (int) (deliveryTag & mask);
+        if (receivedAt[index] == EMPTY) {
+            ringSize++;
+            size++;
+        }
+        receivedAt[index] = receivedAtMillis;
+        if (deliveryTag >= tail) {
+            tail = deliveryTag + 1;
+        }
+    }
+
+    /**
+     * @return true if the delivery was outstanding
+     */
+    boolean remove(long deliveryTag) {
+        final CompletableFuture<Void> completed;
+        synchronized (this) {
+            if (size == 0 || deliveryTag >= tail) {
+                return false;
+            }
+            if (deliveryTag < head) {
+                if (overflow.remove(deliveryTag) == null) {
+                    return false;
+                }
+            } else {
+                final int index = (int) (deliveryTag & mask);
+                if (receivedAt[index] == EMPTY) {
+                    return false;
+                }
+                receivedAt[index] = EMPTY;
+                ringSize--;
+                skipEmpty();
+            }
+            size--;
+            if (size == 0) {
+                emptySince = System.currentTimeMillis();
+            }
+            if (size > 0 || whenEmpty == null) {
+                return true;
+            }
+            completed = whenEmpty;
+            whenEmpty = null;
+        }
+        completed.complete(null);
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return when the oldest outstanding delivery was received, or 0 if there are no outstanding deliveries
+     */
+    synchronized long getOldestReceivedAt() {
+        if (size == 0) {
+            return EMPTY;
+        }
+        return overflow.isEmpty() ? receivedAt[(int) (head & mask)] : overflow.firstEntry().getValue();
+    }
+
+    /**
+     * @return the number of outstanding deliveries that were received at or before the given time
+     */
+    synchronized int countReceivedBefore(long timestampMillis) {
+        int count = 0;
+        for (long timestamp : overflow.values()) {
+            if (timestamp > timestampMillis) {
+                return count;
+            }
+            count++;
+        }
+        for (long tag = head; ringSize > 0 && tag < tail; tag++) {
+            final long timestamp = receivedAt[(int) (tag & mask)];
+            if (timestamp == EMPTY) {
+                continue;
+            }
+            if (timestamp > timestampMillis) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the time there have been no outstanding deliveries since the last call
+     */
+    synchronized long takeEmptyMillis(long nowMillis) {
+        long empty = emptyMillis;
+        if (size == 0) {
+            empty += Math.max(0, nowMillis - emptySince);
+            emptySince = nowMillis;
+        }
+        emptyMillis = 0;
+        return empty;
+    }
+
+    /**
+     * @return a future that is completed the next time there are no outstanding deliveries, or a completed future
+     * if there are none right now
+     */
+    synchronized CompletableFuture<Void> whenEmpty() {
+        if (size == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (whenEmpty == null) {
+            whenEmpty = new CompletableFuture<>();
+        }
+        return whenEmpty;
+    }
+
+    private void ensureCapacity(long deliveryTag) {
+        if (deliveryTag - head < receivedAt.length) {
+            return;
+        }
+        if (ringSize >= receivedAt.length / 2 && receivedAt.length < MAX_CAPACITY && deliveryTag - head < receivedAt.length * 2L) {
+            final long[] newReceivedAt = new long[receivedAt.length * 2];
+            final int newMask = newReceivedAt.length - 1;
+            for (long tag = head; tag < tail; tag++) {
+                newReceivedAt[(int) (tag & newMask)] = receivedAt[(int) (tag & mask)];
+            }
+            receivedAt = newReceivedAt;
+            mask = newMask;
+            return;
+        }
+        //The ring is sparsely used, so the stragglers at its low end are moved to the overflow map
+        final long newHead = deliveryTag - receivedAt.length / 2;
+        for (; head < newHead && head < tail; head++) {
+            final int index = (int) (head & mask);
+            if (receivedAt[index] != EMPTY) {
+                overflow.put(head, receivedAt[index]);
+                receivedAt[index] = EMPTY;
+                ringSize--;
+            }
+        }
+        head = newHead;
+        tail = Math.max(tail, head);
+        skipEmpty();
+    }
+
+    private void skipEmpty() {
+        while (head < tail && receivedAt[(int) (head & mask)] == EMPTY) {
+            head++;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.meltwater.rxrabbit.util;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.meltwater.rxrabbit.RoutingKey;
+import com.rabbitmq.client.AMQP;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Extracts the key that decides which publish channel a message is sent on when key affinity is used.
+ * All messages with the same key are published on the same channel and in the order they were published.
+ *
+ * It is also used to decide the lane of a consumed message when the messages are partitioned, see {@link PartitionTransformer}.
+ */
+public interface AffinityKeyExtractor {
+
+    AffinityKeyExtractor ROUTING_KEY = (routingKey, basicProperties) -> routingKey.value;
+
+    String getKey(RoutingKey routingKey, AMQP.BasicProperties basicProperties);
+
+    /**
+     * Consistently hashes a key to one of the buckets, so a key is always given the same bucket and only a small share
+     * of the keys move to another bucket when the number of buckets changes.
+     *
+     * @param key the key, null is treated as the empty key
+     * @param buckets the number of buckets
+     * @return the bucket of the key, from 0 to buckets - 1
+     */
+    static int bucket(String key, int buckets) {
+        if (buckets == 1) {
+            return 0;
+        }
+        return Hashing.consistentHash(Hashing.murmur3_128().hashString(Strings.nullToEmpty(key), StandardCharsets.UTF_8), buckets);
+    }
+}
@@ -0,0 +1,128 @@
+package com.meltwater.rxrabbit.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies in nanoseconds.
+ *
+ * Values are counted in log-linear buckets: every power of two range is split into 16 equally wide buckets,
+ * so percentiles are reported with an error of at most 1/16 (6.25%) of the value. Recording a value costs a few
+ * atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NR_BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NR_BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos the latency to record, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        final long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketIndex(value));
+        sum.addAndGet(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * @return a copy of the current state of the histogram. Values recorded while the snapshot is taken may or
+     * may not be included.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[NR_BUCKETS];
+        long count = 0;
+        for (int i = 0; i < NR_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, sum.get(), max.get());
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the highest value that is counted in the bucket
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        final long subBucket = SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMaxNanos() {
+            return max;
+        }
+
+        public double getMeanNanos() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param percentile a percentile between 0 and 100, for example 99.9
+         * @return the latency that the given percentile of all recorded latencies are lower than or equal to, 0 if nothing has been recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            assert percentile >= 0 && percentile <= 100;
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "{" +
+                    "count:" + count +
+                    ", meanNanos:" + (long) getMeanNanos() +
+                    ", p50Nanos:" + getValueAtPercentile(50) +
+                    ", p99Nanos:" + getValueAtPercentile(99) +
+                    ", p999Nanos:" + getValueAtPercentile(99.9) +
+                    ", maxNanos:" + max +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.meltwater.rxrabbit.util;
+
+import com.meltwater.rxrabbit.Message;
+import com.meltwater.rxrabbit.RoutingKey;
+import rx.Observable;
+import rx.Scheduler;
+import rx.observables.GroupedObservable;
+
+/**
+ * This transformer fans the messages of a consumer out to a fixed number of lanes that are processed in parallel.
+ *
+ * The lane of a message is decided by the key given by the {@link AffinityKeyExtractor}, so all messages with the same
+ * key end up in the same lane and are emitted in the order they were delivered. Each lane is observed on its own
+ * worker of the given scheduler, so different lanes are processed on different threads.
+ *
+ * The messages can be acked in any order. The ack is always sent on the channel the message was received on, and acks
+ * completed out of order are never covered by a multiple ack of an earlier message that is still being processed.
+ *
+ * Subscribe to the lanes with {@link Observable#flatMap} (not concatMap) or they will not be processed in parallel.
+ */
+public class PartitionTransformer implements Observable.Transformer<Message, GroupedObservable<Integer, Message>> {
+
+    private final int lanes;
+    private final AffinityKeyExtractor keyExtractor;
+    private final Scheduler scheduler;
+
+    /**
+     * @param lanes the number of lanes
+     * @param keyExtractor extracts the key from the routing key and properties of the messages
+     * @param scheduler the scheduler that the lanes are observed on
+     */
+    public PartitionTransformer(int lanes, AffinityKeyExtractor keyExtractor, Scheduler scheduler) {
+        assert lanes > 0;
+        assert keyExtractor != null;
+        this.lanes = lanes;
+        this.keyExtractor = keyExtractor;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public Observable<GroupedObservable<Integer, Message>> call(Observable<Message> input) {
+        return input
+                .groupBy(this::lane)
+                .map(lane -> GroupedObservable.from(lane.getKey(), lane.observeOn(scheduler)));
+    }
+
+    private Integer lane(Message message) {
+        if (lanes == 1) {
+            return 0;
+        }
+        return AffinityKeyExtractor.bucket(keyExtractor.getKey(new RoutingKey(message.envelope.getRoutingKey()), message.basicProperties), lanes);
+    }
+}
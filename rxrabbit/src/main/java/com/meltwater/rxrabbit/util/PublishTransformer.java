@@ -0,0 +1,55 @@
+package com.meltwater.rxrabbit.util;
+
+import com.meltwater.rxrabbit.PublishRequest;
+import com.meltwater.rxrabbit.PublishResult;
+import com.meltwater.rxrabbit.RabbitPublisher;
+import rx.Observable;
+import rx.Single;
+import rx.functions.Func1;
+
+/**
+ * This transformer publishes a stream of {@link PublishRequest}s and emits one {@link PublishResult} per request,
+ * in the same order as the requests.
+ *
+ * At most maxInFlight requests are being published at the same time. New requests are only requested from the source
+ * observable when earlier ones have completed and their results have been requested downstream, so a slow broker or a
+ * slow subscriber slows down the source instead of building up a backlog of publishes in memory.
+ *
+ * A failed publish does not terminate the stream, it is reported as a result with an error instead.
+ *
+ * @see Observable#concatMapEager(Func1, int, int)
+ */
+public class PublishTransformer implements Observable.Transformer<PublishRequest, PublishResult> {
+
+    private final Func1<PublishRequest, Single<Void>> publish;
+    private final int maxInFlight;
+
+    /**
+     * @param publisher the publisher to publish with
+     * @param maxInFlight the max number of requests that are published at the same time
+     */
+    public PublishTransformer(RabbitPublisher publisher, int maxInFlight) {
+        this(request -> publisher.call(request.exchange, request.routingKey, request.basicProperties, request.payload), maxInFlight);
+    }
+
+    /**
+     * @param publish the function that publishes one request
+     * @param maxInFlight the max number of requests that are published at the same time
+     */
+    public PublishTransformer(Func1<PublishRequest, Single<Void>> publish, int maxInFlight) {
+        assert maxInFlight > 0;
+        this.publish = publish;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public Observable<PublishResult> call(Observable<PublishRequest> requests) {
+        return requests.concatMapEager(
+                request -> publish.call(request)
+                        .map(ignored -> new PublishResult(request, null))
+                        .onErrorReturn(error -> new PublishResult(request, error))
+                        .toObservable(),
+                maxInFlight,
+                maxInFlight);
+    }
+}
@@ -0,0 +1,133 @@
+package com.meltwater.rxrabbit
+
+import com.meltwater.rxrabbit.impl.AckCoalescer
+import spock.lang.Specification
+
+class AckCoalescerSpecification extends Specification {
+
+    def frames = []
+    def coalescer = new AckCoalescer<Long>(0, 100, { boolean ack, long tag, boolean multiple, List<Long> settled ->
+        frames << [ack ? 'ack' : 'nack', tag, multiple, new ArrayList(settled)]
+    } as AckCoalescer.Sender)
+
+    def 'sends one multiple ack for the contiguous acked deliveries'(){
+        when:
+            (1..5).each { coalescer.settle(it, true, it) }
+            coalescer.flush()
+
+        then:
+            frames == [['ack', 5, true, [1, 2, 3, 4, 5]]]
+            coalescer.pending == 0
+    }
+
+    def 'never covers a delivery that has not been acked and sends the deliveries above it one by one'(){
+        when:
+            [1l, 2l, 4l, 5l].each { coalescer.settle(it, true, it) }
+            coalescer.flush()
+
+        then:
+            frames == [['ack', 2, true, [1, 2]], ['ack', 4, false, [4]], ['ack', 5, false, [5]]]
+
+        when:'the gap is acked later together with more deliveries'
+            frames.clear()
+            [3l, 6l, 7l].each { coalescer.settle(it, true, it) }
+            coalescer.flush()
+
+        then:'the already sent deliveries are skipped over'
+            frames == [['ack', 7, true, [3, 6, 7]]]
+    }
+
+    def 'splits acks and nacks into separate runs'(){
+        when:
+            coalescer.settle(1, true, 1)
+            coalescer.settle(2, false, 2)
+            coalescer.settle(3, false, 3)
+            coalescer.settle(4, true, 4)
+            coalescer.flush()
+
+        then:
+            frames == [['ack', 1, false, [1]], ['nack', 3, true, [2, 3]], ['ack', 4, false, [4]]]
+    }
+
+    def 'flushes when the batch size is reached'(){
+        setup:
+            def small = new AckCoalescer<Long>(10, 3, { boolean ack, long tag, boolean multiple, List<Long> settled ->
+                frames << [tag, multiple]
+            } as AckCoalescer.Sender)
+
+        when:
+            small.settle(12, true, 12)
+            small.settle(11, true, 11)
+
+        then:
+            frames.isEmpty()
+            small.pending == 2
+
+        when:
+            small.settle(13, true, 13)
+
+        then:
+            frames == [[13, true]]
+    }
+
+    def 'keeps track of more deliveries than the initial capacity'(){
+        when:
+            (2..1000).each { coalescer.settle(it, true, it); if (it % 100 == 0) coalescer.flush() }
+            frames.clear()
+            coalescer.settle(1, true, 1)
+            coalescer.settle(1001, true, 1001)
+            coalescer.settle(1002, true, 1002)
+            coalescer.flush()
+
+        then:
+            frames == [['ack', 1002, true, [1, 1001, 1002]]]
+    }
+
+    def 'keeps the memory bounded when one delivery is never acked'(){
+        when:
+            (2..100_000).each { coalescer.settle(it, true, it) }
+            coalescer.flush()
+
+        then:
+            frames.size() == 99_999
+            frames.every { !it[2] }
+            coalescer.pending == 0
+            coalescer.@states.length <= 512
+
+        when:'the straggler is finally acked'
+            frames.clear()
+            coalescer.settle(1, true, 1)
+            (100_001..100_003).each { coalescer.settle(it, true, it) }
+            coalescer.flush()
+
+        then:'it is sent together with the later deliveries'
+            frames == [['ack', 100_003, true, [1, 100_001, 100_002, 100_003]]]
+            coalescer.pending == 0
+    }
+
+    def 'keeps the acks correct for stragglers that are settled out of order'(){
+        setup:
+            def outstanding = [10l, 20l, 21l, 600l] as Set
+
+        when:
+            (1l..2000l).findAll { !outstanding.contains(it) }.each { coalescer.settle(it, true, it) }
+            coalescer.flush()
+            frames.clear()
+            coalescer.settle(21, false, 21)
+            coalescer.settle(10, true, 10)
+            coalescer.flush()
+
+        then:
+            frames == [['ack', 10, false, [10]], ['nack', 21, false, [21]]]
+
+        when:
+            frames.clear()
+            coalescer.settle(20, true, 20)
+            coalescer.settle(600, true, 600)
+            coalescer.settle(2001, true, 2001)
+            coalescer.flush()
+
+        then:
+            frames == [['ack', 2001, true, [20, 600, 2001]]]
+    }
+}
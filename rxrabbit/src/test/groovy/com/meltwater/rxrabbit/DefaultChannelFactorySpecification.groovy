@@ -0,0 +1,323 @@
+package com.meltwater.rxrabbit
+
+import com.meltwater.rxrabbit.impl.DefaultChannelFactory
+import com.rabbitmq.client.Channel
+import com.rabbitmq.client.Connection
+import com.rabbitmq.client.ConnectionFactory
+import com.rabbitmq.client.ShutdownSignalException
+import spock.lang.Specification
+import spock.lang.Unroll
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+class DefaultChannelFactorySpecification extends Specification {
+
+    @Unroll
+    def 'classifies a channel closed by a #closeReason error on an open=#connectionOpen connection as a connection error=#connectionError'(){
+        setup:
+            def connection = Mock(Connection) { isOpen() >> connectionOpen }
+            def channel = Mock(Channel) {
+                getCloseReason() >> (closeReason == 'none' ? null : new ShutdownSignalException(closeReason == 'hard', false, null, null))
+            }
+
+        expect:
+            DefaultChannelFactory.isConnectionError(connection, channel) == connectionError
+
+        where:
+            connectionOpen | closeReason || connectionError
+            true           | 'none'      || false
+            true           | 'soft'      || false
+            true           | 'hard'      || true
+            false          | 'none'      || true
+            false          | 'soft'      || true
+    }
+
+    def 'hands out an open spare publish channel and replenishes the spares in the background'(){
+        setup:
+            def factory = new FakeChannelFactory(new ConnectionSettings().withPublishChannelSpares(2))
+            def conditions = new PollingConditions(timeout: 5)
+
+        when:
+            conditions.eventually { assert spareChannels(factory).size() == 2 }
+            def spares = new ArrayList(spareChannels(factory))
+            def channel = factory.createPublishChannel()
+
+        then:
+            channel.is(spares[0])
+            conditions.eventually {
+                assert spareChannels(factory).size() == 2
+                assert !spareChannels(factory).contains(channel)
+            }
+            factory.openConnections*.channels.flatten() == [channel]
+            factory.openConnections*.spares.flatten().size() == 2
+    }
+
+    def 'discards a spare publish channel that was closed while it was waiting'(){
+        setup:
+            def factory = new FakeChannelFactory(new ConnectionSettings().withPublishChannelSpares(2))
+            def conditions = new PollingConditions(timeout: 5)
+
+        when:
+            conditions.eventually { assert spareChannels(factory).size() == 2 }
+            def spares = new ArrayList(spareChannels(factory))
+            spares[0].delegate.close()
+            def channel = factory.createPublishChannel()
+
+        then:
+            channel.is(spares[1])
+            factory.openConnections*.channels.flatten() == [channel]
+            !factory.openConnections*.spares.flatten().contains(spares[0])
+            conditions.eventually {
+                assert spareChannels(factory).size() == 2
+                assert factory.openConnections*.spares.flatten().size() == 2
+            }
+    }
+
+    def 'closes a connection when its last used channel is closed even if it has spare channels'(){
+        setup:
+            def factory = new FakeChannelFactory(new ConnectionSettings().withPublishChannelSpares(2))
+            def conditions = new PollingConditions(timeout: 5)
+            conditions.eventually { assert spareChannels(factory).size() == 2 }
+            def channel = factory.createPublishChannel()
+            conditions.eventually { assert spareChannels(factory).size() == 2 }
+            def connection = factory.openConnections[0].connection
+
+        when:
+            channel.close()
+
+        then:
+            !connection.isOpen()
+            factory.openConnections.isEmpty()
+
+        when:'the spares of the closed connection are discarded'
+            def next = factory.createPublishChannel()
+
+        then:
+            next.isOpen()
+            !next.is(channel)
+            factory.openConnections*.channels.flatten() == [next]
+    }
+
+    def 'closes the spare publish channels and their connection when the factory is closed'(){
+        setup:
+            def factory = new FakeChannelFactory(new ConnectionSettings().withPublishChannelSpares(2))
+            def conditions = new PollingConditions(timeout: 5)
+            conditions.eventually { assert spareChannels(factory).size() == 2 }
+            def spares = new ArrayList(spareChannels(factory))
+            def connection = factory.openConnections[0].connection
+
+        when:
+            factory.close()
+
+        then:
+            spareChannels(factory).isEmpty()
+            spares.every { !it.isOpen() }
+            !connection.isOpen()
+            factory.openConnections.isEmpty()
+
+        when:
+            def channel = factory.createPublishChannel()
+
+        then:'new channels are opened on demand'
+            channel.isOpen()
+            spareChannels(factory).isEmpty()
+    }
+
+    def 'opens one connection for concurrent callers and lets them all wait for it'(){
+        setup:
+            def factory = new FakeChannelFactory(new ConnectionSettings())
+            def opening = new CountDownLatch(1)
+            def open = new CountDownLatch(1)
+            def opens = new AtomicInteger()
+            factory.connect = {
+                opens.incrementAndGet()
+                opening.countDown()
+                open.await(5, TimeUnit.SECONDS)
+                fakeConnection()
+            }
+            def channels = new CopyOnWriteArrayList()
+
+        when:
+            def threads = (1..5).collect { Thread.start { channels << factory.createPublishChannel() } }
+            opening.await(5, TimeUnit.SECONDS)
+            Thread.sleep(200)
+            open.countDown()
+            threads*.join(5000)
+
+        then:
+            opens.get() == 1
+            channels.size() == 5
+            factory.openConnections.size() == 1
+            factory.openConnections[0].channels.size() == 5
+    }
+
+    def 'fails every caller waiting for a connection that could not be opened and opens a new one next time'(){
+        setup:
+            def factory = new FakeChannelFactory(new ConnectionSettings())
+            def opening = new CountDownLatch(1)
+            def fail = new CountDownLatch(1)
+            def opens = new AtomicInteger()
+            factory.connect = {
+                if (opens.incrementAndGet() > 1) {
+                    return fakeConnection()
+                }
+                opening.countDown()
+                fail.await(5, TimeUnit.SECONDS)
+                throw new IOException('broker down')
+            }
+            def errors = new CopyOnWriteArrayList()
+
+        when:
+            def threads = (1..5).collect {
+                Thread.start {
+                    try {
+                        factory.createPublishChannel()
+                    } catch (IOException e) {
+                        errors << e
+                    }
+                }
+            }
+            opening.await(5, TimeUnit.SECONDS)
+            Thread.sleep(200)
+            fail.countDown()
+            threads*.join(5000)
+
+        then:
+            opens.get() == 1
+            errors.size() == 5
+            errors*.cause*.message == ['broker down'] * 5
+            factory.openConnections.isEmpty()
+
+        when:
+            def channel = factory.createPublishChannel()
+
+        then:
+            opens.get() == 2
+            channel.isOpen()
+            factory.openConnections.size() == 1
+    }
+
+    def 'does not leave a connection pending forever when opening it throws an error'(){
+        setup:
+            def factory = new FakeChannelFactory(new ConnectionSettings())
+            def opens = new AtomicInteger()
+            factory.connect = {
+                if (opens.incrementAndGet() == 1) {
+                    throw new AssertionError((Object) 'unexpected')
+                }
+                fakeConnection()
+            }
+
+        when:
+            factory.createPublishChannel()
+
+        then:
+            def e = thrown(AssertionError)
+            e.message == 'unexpected'
+            factory.openConnections.isEmpty()
+
+        when:
+            def channel = CompletableFuture.supplyAsync { factory.createPublishChannel() }.get(5, TimeUnit.SECONDS)
+
+        then:
+            opens.get() == 2
+            channel.isOpen()
+    }
+
+    def 'keeps a connection open while a channel is being opened on it even if its last channel is closed'(){
+        setup:
+            def factory = new FakeChannelFactory(new ConnectionSettings())
+            def creating = new CountDownLatch(1)
+            def create = new CountDownLatch(1)
+            def channelsCreated = new AtomicInteger()
+            factory.connect = {
+                fakeConnection {
+                    if (channelsCreated.incrementAndGet() == 2) {
+                        creating.countDown()
+                        create.await(5, TimeUnit.SECONDS)
+                    }
+                }
+            }
+            def first = factory.createPublishChannel()
+            def connection = factory.openConnections[0].connection
+            PublishChannel second = null
+
+        when:'a second channel is being opened on the connection, which reserves it'
+            def thread = Thread.start { second = factory.createPublishChannel() }
+            creating.await(5, TimeUnit.SECONDS)
+
+        and:'the only channel on the connection is closed'
+            first.close()
+
+        then:
+            connection.isOpen()
+
+        when:
+            create.countDown()
+            thread.join(5000)
+
+        then:
+            second.isOpen()
+            factory.openConnections*.connection == [connection]
+
+        when:
+            second.close()
+
+        then:
+            !connection.isOpen()
+            factory.openConnections.isEmpty()
+    }
+
+    /**
+     * Opens fake connections instead of connecting to a broker.
+     */
+    static class FakeChannelFactory extends DefaultChannelFactory {
+
+        volatile Closure<Connection> connect
+
+        FakeChannelFactory(ConnectionSettings settings) {
+            super(new BrokerAddresses('amqp://localhost'), settings)
+        }
+
+        @Override
+        protected Connection newConnection(ConnectionFactory connectionFactory) {
+            connect ? connect() : fakeConnection()
+        }
+    }
+
+    static Collection spareChannels(DefaultChannelFactory factory) {
+        def field = DefaultChannelFactory.getDeclaredField('spareChannels')
+        field.accessible = true
+        field.get(factory) as Collection
+    }
+
+    static Connection fakeConnection(Closure beforeCreateChannel = {}) {
+        def open = new AtomicBoolean(true)
+        def channelNumbers = new AtomicInteger()
+        Connection connection = null
+        connection = [
+                isOpen       : { open.get() },
+                createChannel: { beforeCreateChannel(); fakeChannel(connection, channelNumbers.incrementAndGet()) },
+                close        : { open.set(false) }
+        ] as Connection
+        connection
+    }
+
+    static Channel fakeChannel(Connection connection, int channelNumber) {
+        def open = new AtomicBoolean(true)
+        [
+                isOpen          : { open.get() },
+                getConnection   : { connection },
+                getChannelNumber: { channelNumber },
+                getCloseReason  : { null },
+                confirmSelect   : { null },
+                close           : { open.set(false) }
+        ] as Channel
+    }
+}
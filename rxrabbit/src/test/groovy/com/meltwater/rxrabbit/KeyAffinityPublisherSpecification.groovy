@@ -0,0 +1,139 @@
+package com.meltwater.rxrabbit
+
+import com.meltwater.rxrabbit.impl.KeyAffinityPublisher
+import com.meltwater.rxrabbit.util.AffinityKeyExtractor
+import com.rabbitmq.client.AMQP
+import rx.Single
+import rx.schedulers.Schedulers
+import rx.subjects.PublishSubject
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+
+class KeyAffinityPublisherSpecification extends Specification {
+
+    def 'publishes messages with the same key on the same channel one at a time'(){
+        setup:
+            def first = new FakePublisher()
+            def second = new FakePublisher()
+            def publisher = new KeyAffinityPublisher([first, second], AffinityKeyExtractor.ROUTING_KEY)
+            def results = [].asSynchronized()
+
+        when:'publishing two messages with the same key and one with another key'
+            ['a-1', 'a-2', 'b-1'].each { msg ->
+                publisher.call(new Exchange('exchange'), new RoutingKey(msg[0]), new AMQP.BasicProperties(), new Payload(msg.getBytes()))
+                        .subscribe({ results << msg }, { results << "$msg failed" })
+            }
+
+        then:'the second message for the key waits for the first one'
+            (first.started + second.started).sort() == ['a-1', 'b-1']
+
+        when:'the first message fails after its re-tries'
+            publisherOf(first, second, 'a-1').fail('a-1')
+
+        then:'the next message for the key is published on the same channel'
+            publisherOf(first, second, 'a-2').started.containsAll(['a-1', 'a-2'])
+            results == ['a-1 failed']
+
+        when:
+            publisherOf(first, second, 'a-2').complete('a-2')
+            publisherOf(first, second, 'b-1').complete('b-1')
+
+        then:
+            results == ['a-1 failed', 'a-2', 'b-1']
+    }
+
+    def 'publishes a stream in key order over the channels and completes the results on the observe on scheduler'(){
+        setup:
+            def first = new LeastInFlightPublisherSpecification.FakeChannel(autoConfirm: true)
+            def second = new LeastInFlightPublisherSpecification.FakeChannel(autoConfirm: true)
+            def observeOn = Schedulers.from(Executors.newSingleThreadExecutor({ r -> new Thread(r, 'observe-on') } as ThreadFactory))
+            def publisher = new KeyAffinityPublisher([
+                    LeastInFlightPublisherSpecification.createPublisher(first.factory, 10, observeOn),
+                    LeastInFlightPublisherSpecification.createPublisher(second.factory, 10, observeOn)],
+                    { routingKey, props -> "key-${(routingKey.value as int) % 10}" as String } as AffinityKeyExtractor)
+            def threads = ConcurrentHashMap.newKeySet()
+
+        when:
+            List<PublishResult> results = publisher.publishStream(LeastInFlightPublisherSpecification.requests(200))
+                    .doOnNext { threads << Thread.currentThread().name }
+                    .toList()
+                    .toBlocking()
+                    .single()
+
+        then:
+            results.every { it.success }
+            results.collect { it.request.routingKey.value } == (1..200).collect { "$it" as String }
+            [first.published, second.published].every { published ->
+                published.groupBy { (it as int) % 10 }.every { key, messages -> messages == messages.sort(false) { it as int } }
+            }
+            !first.published.isEmpty()
+            !second.published.isEmpty()
+            threads == ['observe-on'] as Set
+
+        cleanup:
+            publisher.close()
+    }
+
+    def 'fails a long queue of messages that fail right away without growing the stack'(){
+        setup:
+            def first = PublishSubject.<Void>create()
+            def calls = new AtomicInteger()
+            def backing = [call: { e, rk, p, pl ->
+                calls.getAndIncrement() == 0 ? first.toSingle() : Single.<Void>error(new IllegalStateException('closed'))
+            }, close: { -> }] as RabbitPublisher
+            def publisher = new KeyAffinityPublisher([backing], AffinityKeyExtractor.ROUTING_KEY)
+            def failed = new AtomicInteger()
+
+        when:'many messages wait for the first one with the same key, and fail right away when they are published'
+            (0..50_000).each {
+                publisher.call(new Exchange('exchange'), new RoutingKey('a'), new AMQP.BasicProperties(), new Payload("a-$it".getBytes()))
+                        .subscribe({}, { failed.incrementAndGet() })
+            }
+            first.onNext(null)
+            first.onCompleted()
+
+        then:
+            calls.get() == 50_001
+            failed.get() == 50_000
+    }
+
+    def 'spreads keys over all channels'(){
+        expect:
+            (0..99).collect { AffinityKeyExtractor.bucket("key-$it", 4) }.toSet() == [0, 1, 2, 3] as Set
+            AffinityKeyExtractor.bucket('key', 4) == AffinityKeyExtractor.bucket('key', 4)
+    }
+
+    private static FakePublisher publisherOf(FakePublisher first, FakePublisher second, String msg) {
+        first.started.contains(msg) ? first : second
+    }
+
+    static class FakePublisher implements RabbitPublisher {
+        List<String> started = []
+        Map<String, PublishSubject<Void>> pending = [:]
+
+        @Override
+        Single<Void> call(Exchange exchange, RoutingKey routingKey, AMQP.BasicProperties basicProperties, Payload payload) {
+            def msg = new String(payload.data)
+            started << msg
+            pending[msg] = PublishSubject.create()
+            pending[msg].toSingle()
+        }
+
+        void complete(String msg) {
+            pending[msg].onNext(null)
+            pending[msg].onCompleted()
+        }
+
+        void fail(String msg) {
+            pending[msg].onError(new IOException('failed'))
+        }
+
+        @Override
+        void close() throws IOException {
+        }
+    }
+}
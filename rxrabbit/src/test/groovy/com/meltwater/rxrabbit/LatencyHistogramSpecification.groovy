@@ -0,0 +1,42 @@
+package com.meltwater.rxrabbit
+
+import com.meltwater.rxrabbit.util.LatencyHistogram
+import spock.lang.Specification
+
+class LatencyHistogramSpecification extends Specification {
+
+    def 'every value is counted in a bucket whose upper bound is within 1/16 of the value'(){
+        expect:
+            [0l, 1l, 15l, 16l, 17l, 31l, 32l, 1000l, 123_456_789l, Long.MAX_VALUE].every { long value ->
+                int index = LatencyHistogram.bucketIndex(value)
+                long upper = LatencyHistogram.bucketUpperBound(index)
+                upper >= value && upper - value <= value / 16 &&
+                        (index == 0 || LatencyHistogram.bucketUpperBound(index - 1) < value)
+            }
+    }
+
+    def 'reports percentiles, mean and max of the recorded values'(){
+        setup:
+            def histogram = new LatencyHistogram()
+            (1..1000).each { histogram.record(it * 1000l) }
+            histogram.record(-5)
+
+        when:
+            def snapshot = histogram.snapshot()
+
+        then:
+            snapshot.count == 1001
+            snapshot.maxNanos == 1_000_000
+            Math.abs(snapshot.getValueAtPercentile(50) - 500_000) <= 500_000 / 16
+            Math.abs(snapshot.getValueAtPercentile(99) - 990_000) <= 990_000 / 16
+            snapshot.getValueAtPercentile(100) == 1_000_000
+            snapshot.getValueAtPercentile(0) == 0
+            Math.abs(snapshot.meanNanos - 500_000) < 1000
+    }
+
+    def 'an empty histogram reports zeros'(){
+        expect:
+            new LatencyHistogram().snapshot().getValueAtPercentile(99) == 0
+            new LatencyHistogram().snapshot().meanNanos == 0
+    }
+}
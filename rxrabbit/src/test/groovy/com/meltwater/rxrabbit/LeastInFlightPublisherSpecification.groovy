@@ -0,0 +1,152 @@
+package com.meltwater.rxrabbit
+
+import com.meltwater.rxrabbit.impl.LeastInFlightPublisher
+import com.meltwater.rxrabbit.impl.SingleChannelPublisher
+import com.meltwater.rxrabbit.util.ConstantBackoffAlgorithm
+import com.rabbitmq.client.AMQP
+import com.rabbitmq.client.ConfirmListener
+import rx.Observable
+import rx.Scheduler
+import rx.schedulers.Schedulers
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+
+class LeastInFlightPublisherSpecification extends Specification {
+
+    def conditions = new PollingConditions(timeout: 5)
+
+    def 'publishes to the publisher with the fewest messages in flight'(){
+        setup:
+            def first = new FakeChannel()
+            def second = new FakeChannel()
+            def publisher = new LeastInFlightPublisher([createPublisher(first.factory), createPublisher(second.factory)])
+
+        when:'publishing two messages that are not confirmed yet'
+            publish(publisher, 'a')
+            def b = publish(publisher, 'b')
+            conditions.eventually { assert first.published == ['a'] && second.published == ['b'] }
+
+        and:'the message on the second channel is confirmed'
+            second.listener.handleAck(1l, false)
+            b.get(5, TimeUnit.SECONDS)
+            publish(publisher, 'c')
+
+        then:'the next message goes to the second channel as the first one still has a message in flight'
+            conditions.eventually { assert second.published == ['b', 'c'] }
+            first.published == ['a']
+
+        cleanup:
+            publisher.close()
+    }
+
+    def 'skips a publisher with a broken channel until it has recovered'(){
+        setup:
+            def first = new FakeChannel(failures: 2)
+            def second = new FakeChannel()
+            SingleChannelPublisher broken = createPublisher(first.factory, 500)
+            def publisher = new LeastInFlightPublisher([broken, createPublisher(second.factory)])
+
+        when:'the first channel fails to be created, and so does the first re-connect attempt'
+            def failed = broken.call(ex(), rk('failed'), new AMQP.BasicProperties(), pl('failed'.getBytes()))
+                    .toObservable().map { false }.onErrorReturn { true }.toBlocking().toFuture()
+
+        then:
+            failed.get(5, TimeUnit.SECONDS)
+
+        when:'publishing while the channel is broken'
+            boolean healthyAfterFailure = broken.isHealthy()
+            publish(publisher, 'a')
+
+        then:'the message goes to the healthy publisher and the broken channel is re-created in the background'
+            !healthyAfterFailure
+            conditions.eventually { assert second.published == ['a'] }
+            conditions.eventually { assert broken.isHealthy() }
+
+        cleanup:
+            publisher.close()
+    }
+
+    def 'publishes a stream over all publishers and completes the results on the observe on scheduler'(){
+        setup:
+            def first = new FakeChannel(autoConfirm: true)
+            def second = new FakeChannel(autoConfirm: true)
+            def observeOn = Schedulers.from(Executors.newSingleThreadExecutor({ r -> new Thread(r, 'observe-on') } as ThreadFactory))
+            def publisher = new LeastInFlightPublisher([createPublisher(first.factory, 10, observeOn), createPublisher(second.factory, 10, observeOn)])
+            def threads = ConcurrentHashMap.newKeySet()
+
+        when:
+            List<PublishResult> results = publisher.publishStream(requests(200))
+                    .doOnNext { threads << Thread.currentThread().name }
+                    .toList()
+                    .toBlocking()
+                    .single()
+
+        then:
+            results.every { it.success }
+            results.collect { it.request.routingKey.value } == (1..200).collect { "$it" as String }
+            !first.published.isEmpty()
+            !second.published.isEmpty()
+            threads == ['observe-on'] as Set
+
+        cleanup:
+            publisher.close()
+    }
+
+    static Observable<PublishRequest> requests(int count) {
+        Observable.range(1, count).map { new PublishRequest(ex(), rk("$it"), new AMQP.BasicProperties(), pl("$it".getBytes())) }
+    }
+
+    static SingleChannelPublisher createPublisher(ChannelFactory factory, int backoffMillis = 10, Scheduler observeOn = Schedulers.io()) {
+        new SingleChannelPublisher(factory, true, 1, observeOn, new NoopPublishEventListener(), 10, 1, 1, new ConstantBackoffAlgorithm(backoffMillis), 0, 0)
+    }
+
+    private static def publish(RabbitPublisher publisher, String key) {
+        publisher.call(ex(), rk(key), new AMQP.BasicProperties(), pl(key.getBytes())).toObservable().toBlocking().toFuture()
+    }
+
+    static Payload pl(byte[] bytes) {
+        new Payload(bytes)
+    }
+
+    static RoutingKey rk(String key) {
+        new RoutingKey(key)
+    }
+
+    static Exchange ex() {
+        new Exchange('exchange')
+    }
+
+    static class FakeChannel {
+        int failures = 0
+        boolean autoConfirm = false
+        long seqNo = 0
+        List<String> published = [].asSynchronized()
+        ConfirmListener listener
+
+        ChannelFactory factory = [createPublishChannel: { ->
+            if (failures-- > 0) {
+                throw new IOException('failed to create channel')
+            }
+            [
+                    confirmSelect       : { -> },
+                    addConfirmListener  : { ConfirmListener l -> listener = l },
+                    getNextPublishSeqNo : { -> ++seqNo },
+                    basicPublish        : { String e, String rk, AMQP.BasicProperties p, byte[] b ->
+                        published << rk
+                        if (autoConfirm) {
+                            listener.handleAck(seqNo, false)
+                        }
+                    },
+                    getChannelNumber    : { -> 1 },
+                    waitForConfirms     : { long t -> true },
+                    closeWithError      : { -> },
+                    close               : { -> }
+            ] as PublishChannel
+        }] as ChannelFactory
+    }
+}
@@ -0,0 +1,48 @@
+package com.meltwater.rxrabbit
+
+import com.meltwater.rxrabbit.util.AffinityKeyExtractor
+import com.meltwater.rxrabbit.util.PartitionTransformer
+import com.rabbitmq.client.AMQP
+import com.rabbitmq.client.Envelope
+import rx.Observable
+import rx.schedulers.Schedulers
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+
+class PartitionTransformerSpecification extends Specification {
+
+    def 'keeps the messages with the same key in one lane and in order while the lanes run in parallel'(){
+        setup:
+            def messages = (1..200).collect { message(it, "key-${it % 10}") }
+            def processed = new ConcurrentHashMap<String, List<Integer>>()
+            def lanesOfKey = new ConcurrentHashMap<String, Set<Integer>>()
+            def threads = ConcurrentHashMap.newKeySet()
+
+        when:
+            Observable.from(messages)
+                    .compose(new PartitionTransformer(4, AffinityKeyExtractor.ROUTING_KEY, Schedulers.io()))
+                    .flatMap { lane ->
+                        lane.doOnNext { Message message ->
+                            String key = message.envelope.routingKey
+                            processed.computeIfAbsent(key, { new CopyOnWriteArrayList() }) << (message.envelope.deliveryTag as int)
+                            lanesOfKey.computeIfAbsent(key, { ConcurrentHashMap.newKeySet() }) << lane.key
+                            threads << Thread.currentThread().name
+                        }
+                    }
+                    .toBlocking()
+                    .last()
+
+        then:
+            processed.size() == 10
+            processed.every { key, tags -> tags == tags.sort(false) && tags.size() == 20 }
+            lanesOfKey.every { key, lanes -> lanes.size() == 1 }
+            lanesOfKey.values().flatten().unique().size() > 1
+            threads.size() > 1
+    }
+
+    Message message(long tag, String routingKey) {
+        new Message(null, new Envelope(tag, false, 'exchange', routingKey), new AMQP.BasicProperties(), new byte[0])
+    }
+}
@@ -0,0 +1,52 @@
+package com.meltwater.rxrabbit
+
+import com.meltwater.rxrabbit.impl.PrefetchController
+import spock.lang.Specification
+
+class PrefetchControllerSpecification extends Specification {
+
+    def 'raises the prefetch count up to the max while the consumer is idle waiting for messages'(){
+        setup:
+            def controller = new PrefetchController(100, 10, 200)
+
+        when:
+            controller.acked(5)
+            def first = controller.adjust(1000, 100)
+            controller.acked(5)
+            def second = controller.adjust(1000, 100)
+
+        then:
+            first == 150
+            second == 200
+    }
+
+    def 'lowers the prefetch count step by step towards what the ack rate and latency need'(){
+        setup:
+            def controller = new PrefetchController(100, 10, 200)
+            def adjusted = []
+
+        when:'20 acks per second with 50ms latency need 2 messages, with headroom 3'
+            4.times {
+                20.times { controller.acked(50) }
+                adjusted << controller.adjust(1000, 0)
+            }
+
+        then:
+            adjusted == [75, 57, 43, 33]
+    }
+
+    def 'never goes below the min and does not change without acks'(){
+        setup:
+            def controller = new PrefetchController(12, 10, 200)
+
+        expect:
+            controller.adjust(1000, 1000) == 12
+
+        when:
+            controller.acked(1)
+            controller.adjust(1000, 0)
+
+        then:
+            controller.preFetchCount == 10
+    }
+}
@@ -0,0 +1,57 @@
+package com.meltwater.rxrabbit
+
+import com.meltwater.rxrabbit.util.PublishTransformer
+import com.rabbitmq.client.AMQP
+import rx.Observable
+import rx.observers.TestSubscriber
+import rx.subjects.PublishSubject
+import spock.lang.Specification
+
+class PublishTransformerSpecification extends Specification {
+
+    def 'emits results in order and requests new messages only as publishes complete'(){
+        setup:
+            Map<String, PublishSubject<Void>> pending = [:]
+            def transformer = new PublishTransformer({ PublishRequest r ->
+                def subject = PublishSubject.<Void>create()
+                pending[r.routingKey.value] = subject
+                subject.toSingle()
+            }, 2)
+            long requested = 0
+            def requests = Observable.range(1, 5)
+                    .map { new PublishRequest(new Exchange('exchange'), new RoutingKey("$it"), new AMQP.BasicProperties(), new Payload("$it".getBytes())) }
+                    .doOnRequest { requested += it }
+            def subscriber = new TestSubscriber<PublishResult>()
+
+        when:'subscribing'
+            requests.compose(transformer).subscribe(subscriber)
+
+        then:'only max in flight messages are requested'
+            requested == 2
+            pending.keySet() == ['1', '2'] as Set
+
+        when:'the second publish completes before the first one fails'
+            complete(pending['2'])
+            pending['1'].onError(new IOException('failed'))
+
+        then:'both results are emitted in order and two more messages are requested'
+            subscriber.onNextEvents.collect { it.request.routingKey.value } == ['1', '2']
+            !subscriber.onNextEvents[0].isSuccess()
+            subscriber.onNextEvents[1].isSuccess()
+            pending.keySet() == ['1', '2', '3', '4'] as Set
+
+        when:'the rest completes'
+            complete(pending['3'])
+            complete(pending['4'])
+            complete(pending['5'])
+
+        then:
+            subscriber.assertCompleted()
+            subscriber.onNextEvents.collect { it.request.routingKey.value } == ['1', '2', '3', '4', '5']
+    }
+
+    private static void complete(PublishSubject<Void> subject) {
+        subject.onNext(null)
+        subject.onCompleted()
+    }
+}
@@ -0,0 +1,89 @@
+package com.meltwater.rxrabbit
+
+import com.meltwater.rxrabbit.impl.SequenceWindow
+import spock.lang.Specification
+
+class SequenceWindowSpecification extends Specification {
+
+    def 'stores and removes values by sequence number'(){
+        setup:
+            def window = new SequenceWindow<String>(4)
+
+        when:
+            (1..3).each { window.put(it, "v$it", 0) }
+
+        then:
+            window.size() == 3
+            window.remove(2) == 'v2'
+            window.remove(2) == null
+            window.remove(7) == null
+            window.size() == 2
+            remaining(window) == ['v1', 'v3']
+    }
+
+    def 'grows and keeps all values when more values than the capacity are stored'(){
+        setup:
+            def window = new SequenceWindow<Long>(2)
+
+        when:
+            (100..199).each { window.put(it, it as long, 0) }
+            (100..149).each { window.remove(it) }
+            (200..299).each { window.put(it, it as long, 0) }
+
+        then:
+            window.size() == 150
+            (150..299).every { window.remove(it) == it }
+            window.size() == 0
+    }
+
+    def 'removes expired values oldest first and stops at the first value that has not expired'(){
+        setup:
+            def window = new SequenceWindow<String>()
+            (1..5).each { window.put(it, "v$it", it * 10) }
+            window.remove(2)
+            def expired = []
+
+        when:
+            window.removeExpired(40, expired)
+
+        then:
+            expired == ['v1', 'v3', 'v4']
+            window.size() == 1
+            remaining(window) == ['v5']
+    }
+
+    def 'does not accept a sequence number lower than the oldest stored one'(){
+        setup:
+            def window = new SequenceWindow<String>()
+            window.put(10, 'v10', 0)
+
+        when:
+            window.put(9, 'v9', 0)
+
+        then:
+            thrown(IllegalArgumentException)
+    }
+
+    def 'removes only the values within the range'(){
+        setup:
+            def window = new SequenceWindow<String>()
+            (1..10).each { window.put(it, "v$it", 0) }
+            window.remove(4)
+            def removed = []
+
+        when:
+            window.removeRange(3, 5, removed)
+            window.removeRange(9, 20, removed)
+            window.removeRange(11, 20, removed)
+
+        then:
+            removed == ['v3', 'v5', 'v9', 'v10']
+            remaining(window) == ['v1', 'v2', 'v6', 'v7', 'v8']
+    }
+
+    private static List remaining(SequenceWindow window) {
+        def res = []
+        window.removeAll(res)
+        res
+    }
+}
@@ -0,0 +1,427 @@
+package com.meltwater.rxrabbit
+
+import com.meltwater.rxrabbit.impl.SingleChannelConsumer
+import com.meltwater.rxrabbit.util.ConstantBackoffAlgorithm
+import com.rabbitmq.client.AMQP
+import com.rabbitmq.client.Consumer
+import com.rabbitmq.client.Envelope
+import com.rabbitmq.client.ShutdownSignalException
+import rx.Subscriber
+import rx.schedulers.Schedulers
+import spock.lang.Specification
+import spock.lang.Unroll
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+
+class SingleChannelConsumerSpecification extends Specification {
+
+    def channelFactory = Mock(ChannelFactory)
+    def channel = Mock(ConsumeChannel)
+    def observeOnScheduler = Schedulers.from(Executors.newSingleThreadExecutor({ r -> new Thread(r, 'observe-on-thread') }))
+
+    @Unroll
+    def 'delivers messages in order on the observeOn scheduler and acks them directDispatch=#directDispatch demandDriven=#demandDriven'(){
+        setup:
+            SingleChannelConsumer consumer = new SingleChannelConsumer(channelFactory, 'queue', 'tag', 1, observeOnScheduler,
+                    new NoopConsumeEventListener(), settings().withDirectDispatch(directDispatch).withDemandDriven(demandDriven))
+            Consumer rabbitConsumer = null
+            def received = new CopyOnWriteArrayList()
+            def acked = new CopyOnWriteArrayList()
+            def prefetchCounts = new CopyOnWriteArrayList()
+            channel.basicQos(_) >> { args -> prefetchCounts << args[0] }
+            channel.basicQos(_, _) >> { args -> prefetchCounts << args[0] }
+            channelFactory.createConsumeChannel('queue') >> channel
+            channel.basicConsume(_, _) >> { args -> assert prefetchCounts == [10]; rabbitConsumer = args[1] }
+            channel.basicAck(_, _) >> { args -> acked << args[0] }
+            def conditions = new PollingConditions(timeout: 5)
+
+        when:
+            def subscription = consumer.consume().subscribe { Message message ->
+                received << [new String(message.payload), Thread.currentThread().name]
+                message.acknowledger.ack()
+            }
+            conditions.eventually { assert rabbitConsumer != null }
+            (1..5).each {
+                rabbitConsumer.handleDelivery('tag', new Envelope(it, false, 'exchange', 'key'), new AMQP.BasicProperties(), "$it".getBytes())
+            }
+
+        then:
+            conditions.eventually { assert acked == [1l, 2l, 3l, 4l, 5l] }
+            received == (1..5).collect { ["$it", 'observe-on-thread'] }
+            prefetchCounts.every { it >= 1 && it <= 10 }
+
+        when:
+            subscription.unsubscribe()
+            rabbitConsumer.handleDelivery('tag', new Envelope(6, false, 'exchange', 'key'), new AMQP.BasicProperties(), "6".getBytes())
+            Thread.sleep(200)
+
+        then:'messages received during shutdown are ignored'
+            received.size() == 5
+
+        where:
+            directDispatch | demandDriven
+            false          | false
+            true           | false
+            false          | true
+    }
+
+    def 'acks a batch of contiguous deliveries with one multiple ack'(){
+        setup:
+            SingleChannelConsumer consumer = new SingleChannelConsumer(channelFactory, 'queue', 'tag', 1, observeOnScheduler,
+                    new NoopConsumeEventListener(), settings())
+            Consumer rabbitConsumer = null
+            def acks = new CopyOnWriteArrayList()
+            channelFactory.createConsumeChannel('queue') >> channel
+            channel.basicConsume(_, _) >> { args -> rabbitConsumer = args[1] }
+            channel.basicAck(_, _) >> { args -> acks << [args[0], args[1]] }
+            def conditions = new PollingConditions(timeout: 5)
+
+        when:
+            def batches = new CopyOnWriteArrayList()
+            consumer.consumeBatches(4, 10_000).subscribe { MessageBatch batch ->
+                batches << batch.messages.collect { new String(it.payload) }
+                batch.acknowledger.ack()
+            }
+            conditions.eventually { assert rabbitConsumer != null }
+            (1..8).each {
+                rabbitConsumer.handleDelivery('tag', new Envelope(it, false, 'exchange', 'key'), new AMQP.BasicProperties(), "$it".getBytes())
+            }
+
+        then:
+            conditions.eventually { assert acks == [[4l, true], [8l, true]] }
+            batches == [['1', '2', '3', '4'], ['5', '6', '7', '8']]
+    }
+
+    def 'reports the delivered message itself to the listener and ignores a second ack'(){
+        setup:
+            def listener = Mock(ConsumeEventListener)
+            SingleChannelConsumer consumer = new SingleChannelConsumer(channelFactory, 'queue', 10, 'tag', 1, 1000, observeOnScheduler,
+                    listener, new ConstantBackoffAlgorithm(100))
+            Consumer rabbitConsumer = null
+            def events = new CopyOnWriteArrayList()
+            def acks = new CopyOnWriteArrayList()
+            channelFactory.createConsumeChannel('queue') >> channel
+            channel.basicConsume(_, _) >> { args -> rabbitConsumer = args[1] }
+            channel.basicAck(_, _) >> { args -> acks << args[0] }
+            listener.received(_, _) >> { args -> events << args[0] }
+            listener.done(_, _, _, _) >> { args -> events << args[0] }
+            def conditions = new PollingConditions(timeout: 5)
+            def received = new CopyOnWriteArrayList()
+
+        when:
+            consumer.consume().subscribe { Message message ->
+                received << message
+                message.acknowledger.ack()
+                message.acknowledger.ack()
+            }
+            conditions.eventually { assert rabbitConsumer != null }
+            rabbitConsumer.handleDelivery('tag', new Envelope(1, false, 'exchange', 'key'), new AMQP.BasicProperties(), "1".getBytes())
+
+        then:
+            conditions.eventually { assert events.size() == 2 }
+            acks == [1l]
+            events.every { it.is(received[0]) }
+            received[0].acknowledger.is(received[0])
+    }
+
+    def 'reports the age of the oldest un-acked message every second'(){
+        setup:
+            def reports = new CopyOnWriteArrayList()
+            def listener = new NoopConsumeEventListener() {
+                @Override
+                void oldestUnacked(long oldestUnackedAgeMillis, long unAckedMessages) {
+                    reports << [oldestUnackedAgeMillis, unAckedMessages]
+                }
+            }
+            SingleChannelConsumer consumer = new SingleChannelConsumer(channelFactory, 'queue', 'tag', 1, observeOnScheduler,
+                    listener, settings().withUnackedWarningMillis(100))
+            Consumer rabbitConsumer = null
+            channelFactory.createConsumeChannel('queue') >> channel
+            channel.basicConsume(_, _) >> { args -> rabbitConsumer = args[1] }
+            def conditions = new PollingConditions(timeout: 5)
+            def received = new CopyOnWriteArrayList()
+
+        when:
+            consumer.consume().subscribe { Message message -> received << message }
+            conditions.eventually { assert rabbitConsumer != null }
+            rabbitConsumer.handleDelivery('tag', new Envelope(1, false, 'exchange', 'key'), new AMQP.BasicProperties(), "1".getBytes())
+
+        then:
+            conditions.eventually {
+                assert reports.any { age, unacked -> age > 0 && unacked == 1 }
+            }
+    }
+
+    def 'stops reporting the un-acked messages of a broken channel once it is replaced'(){
+        setup:
+            def reports = new CopyOnWriteArrayList()
+            def listener = new NoopConsumeEventListener() {
+                @Override
+                void oldestUnacked(long oldestUnackedAgeMillis, long unAckedMessages) {
+                    reports << unAckedMessages
+                }
+            }
+            SingleChannelConsumer consumer = new SingleChannelConsumer(channelFactory, 'queue', 'tag', 10, observeOnScheduler,
+                    listener, settings())
+            def rabbitConsumers = new CopyOnWriteArrayList<Consumer>()
+            channelFactory.createConsumeChannel('queue') >> channel
+            channel.basicConsume(_, _) >> { args -> rabbitConsumers << args[1] }
+            def conditions = new PollingConditions(timeout: 5)
+
+        when:'a message is left un-acked when the channel breaks'
+            consumer.consume().subscribe({ Message message -> }, { })
+            conditions.eventually { assert rabbitConsumers.size() == 1 }
+            rabbitConsumers[0].handleDelivery('tag', new Envelope(1, false, 'exchange', 'key'), new AMQP.BasicProperties(), "1".getBytes())
+            conditions.eventually { assert reports.contains(1l) }
+            rabbitConsumers[0].handleShutdownSignal('tag', new ShutdownSignalException(false, false, null, null))
+            conditions.eventually { assert rabbitConsumers.size() == 2 }
+            reports.clear()
+            Thread.sleep(2500)
+
+        then:'only the new consumer reports, and it has nothing un-acked'
+            !reports.isEmpty()
+            reports.every { it == 0 }
+    }
+
+    def 'drops the queued deliveries of a broken channel in direct dispatch mode when it reconnects several times under load'(){
+        setup:
+            SingleChannelConsumer consumer = new SingleChannelConsumer(channelFactory, 'queue', 'tag', 10, observeOnScheduler,
+                    new NoopConsumeEventListener(), settings().withPreFetchCount(16).withDirectDispatch(true))
+            def rabbitConsumers = new CopyOnWriteArrayList<Consumer>()
+            channelFactory.createConsumeChannel('queue') >> channel
+            channel.basicConsume(_, _) >> { args -> rabbitConsumers << args[1] }
+            def conditions = new PollingConditions(timeout: 10)
+            def received = new CopyOnWriteArrayList()
+            def errors = new CopyOnWriteArrayList()
+
+        when:'each channel delivers a full prefetch count to a slow subscriber and then breaks'
+            consumer.consume().subscribe({ Message message ->
+                Thread.sleep(50)
+                received << new String(message.payload)
+                message.acknowledger.ack()
+            }, { errors << it })
+            (1..6).each { attempt ->
+                conditions.eventually { assert rabbitConsumers.size() == attempt }
+                (1..16).each {
+                    rabbitConsumers[attempt - 1].handleDelivery('tag', new Envelope(it, false, 'exchange', 'key'), new AMQP.BasicProperties(), "$attempt-$it".getBytes())
+                }
+                rabbitConsumers[attempt - 1].handleShutdownSignal('tag', new ShutdownSignalException(false, false, null, null))
+            }
+            conditions.eventually { assert rabbitConsumers.size() == 7 }
+            (1..16).each {
+                rabbitConsumers[6].handleDelivery('tag', new Envelope(it, false, 'exchange', 'key'), new AMQP.BasicProperties(), "7-$it".getBytes())
+            }
+
+        then:
+            conditions.eventually { assert received.containsAll((1..16).collect { "7-$it" as String }) }
+            errors.isEmpty()
+            received.size() < 7 * 16
+    }
+
+    def 'sets the prefetch count to what the subscriber requests in demand driven mode'(){
+        setup:
+            def qosChannel = new QosChannel()
+            SingleChannelConsumer consumer = new SingleChannelConsumer(channelFactory, 'queue', 'tag', 1, observeOnScheduler,
+                    new NoopConsumeEventListener(), settings().withDemandDriven(true))
+            channelFactory.createConsumeChannel('queue') >> qosChannel
+            def conditions = new PollingConditions(timeout: 5)
+            def received = new CopyOnWriteArrayList()
+            def subscriber = new Subscriber<Message>() {
+                @Override
+                void onStart() {
+                    request(1)
+                }
+
+                @Override
+                void onNext(Message message) {
+                    received << [new String(message.payload), Thread.currentThread().name]
+                    message.acknowledger.ack()
+                    request(1)
+                }
+
+                @Override
+                void onCompleted() {
+                }
+
+                @Override
+                void onError(Throwable e) {
+                }
+            }
+
+        when:
+            consumer.consume().subscribe(subscriber)
+            conditions.eventually { assert qosChannel.consumer != null }
+
+        then:
+            qosChannel.globalPrefetches == [1]
+
+        when:'each message is delivered once the previous one has been acked, like the broker does with a prefetch count of 1'
+            (1..3).each { tag ->
+                qosChannel.consumer.handleDelivery('tag', new Envelope(tag, false, 'exchange', 'key'), new AMQP.BasicProperties(), "$tag".getBytes())
+                conditions.eventually { assert qosChannel.acked.size() == tag }
+            }
+
+        then:'the prefetch count covers at most the message being processed and the one requested next'
+            qosChannel.acked == [1l, 2l, 3l]
+            received == (1..3).collect { ["$it", 'observe-on-thread'] }
+            qosChannel.globalPrefetches.every { it <= 2 }
+    }
+
+    def 'changes the prefetch count that is in effect for the running consumer in demand driven mode'(){
+        setup:
+            def qosChannel = new QosChannel()
+            SingleChannelConsumer consumer = new SingleChannelConsumer(channelFactory, 'queue', 'tag', 1, observeOnScheduler,
+                    new NoopConsumeEventListener(), settings().withDemandDriven(true))
+            channelFactory.createConsumeChannel('queue') >> qosChannel
+            def conditions = new PollingConditions(timeout: 5)
+            def received = new CopyOnWriteArrayList<Message>()
+            def subscriber = new Subscriber<Message>() {
+                @Override
+                void onStart() {
+                    request(10)
+                }
+
+                @Override
+                void onNext(Message message) {
+                    received << message
+                }
+
+                @Override
+                void onCompleted() {
+                }
+
+                @Override
+                void onError(Throwable e) {
+                }
+            }
+
+        when:
+            consumer.consume().subscribe(subscriber)
+            conditions.eventually { assert qosChannel.consumer != null }
+            (1..10).each {
+                qosChannel.consumer.handleDelivery('tag', new Envelope(it, false, 'exchange', 'key'), new AMQP.BasicProperties(), "$it".getBytes())
+            }
+
+        then:
+            conditions.eventually { assert received.size() == 10 }
+            qosChannel.effectivePrefetch == 10
+
+        when:'five of the messages are processed and acked'
+            received.take(5)*.acknowledger*.ack()
+
+        then:'the prefetch count is lowered to what is still in progress'
+            conditions.eventually {
+                assert qosChannel.acked.size() == 5
+                assert qosChannel.effectivePrefetch == 5
+            }
+    }
+
+    def 'changes the prefetch count that is in effect for the running consumer when it is adaptive'(){
+        setup:
+            def qosChannel = new QosChannel()
+            SingleChannelConsumer consumer = new SingleChannelConsumer(channelFactory, 'queue', 'tag', 1, observeOnScheduler,
+                    new NoopConsumeEventListener(), settings().withAdaptivePreFetch(5, 20))
+            channelFactory.createConsumeChannel('queue') >> qosChannel
+            def conditions = new PollingConditions(timeout: 5)
+
+        when:
+            consumer.consume().subscribe { Message message -> message.acknowledger.ack() }
+            conditions.eventually { assert qosChannel.consumer != null }
+
+        then:
+            qosChannel.effectivePrefetch == 10
+
+        when:'a message is acked and the consumer is then idle waiting for more'
+            qosChannel.consumer.handleDelivery('tag', new Envelope(1, false, 'exchange', 'key'), new AMQP.BasicProperties(), "1".getBytes())
+
+        then:'the raised prefetch count applies to the running consumer'
+            conditions.eventually {
+                assert qosChannel.acked == [1l]
+                assert qosChannel.effectivePrefetch > 10
+            }
+    }
+
+    private static ConsumerSettings settings() {
+        new ConsumerSettings()
+                .withPreFetchCount(10)
+                .withCloseTimeoutMillis(1000)
+                .withBackoffAlgorithm(new ConstantBackoffAlgorithm(100))
+    }
+
+    /**
+     * Applies the prefetch counts like the broker does, a per consumer prefetch count only applies to the consumers
+     * started after it is set while a global one applies to the whole channel right away.
+     */
+    static class QosChannel implements ConsumeChannel {
+
+        volatile Consumer consumer
+        volatile int nextConsumerPrefetch = 0
+        volatile int consumerPrefetch = 0
+        volatile int globalPrefetch = 0
+        def globalPrefetches = new CopyOnWriteArrayList()
+        def acked = new CopyOnWriteArrayList()
+
+        int getEffectivePrefetch() {
+            [consumerPrefetch, globalPrefetch].findAll { it > 0 }.min() ?: 0
+        }
+
+        @Override
+        String getQueue() {
+            'queue'
+        }
+
+        @Override
+        void basicCancel(String consumerTag) {
+        }
+
+        @Override
+        void basicAck(long deliveryTag, boolean multiple) {
+            acked << deliveryTag
+        }
+
+        @Override
+        void basicNack(long deliveryTag, boolean multiple) {
+        }
+
+        @Override
+        void basicConsume(String consumerTag, Consumer callback) {
+            consumerPrefetch = nextConsumerPrefetch
+            consumer = callback
+        }
+
+        @Override
+        void basicQos(int prefetchCount) {
+            basicQos(prefetchCount, false)
+        }
+
+        @Override
+        void basicQos(int prefetchCount, boolean global) {
+            if (global) {
+                globalPrefetch = prefetchCount
+                globalPrefetches << prefetchCount
+            } else {
+                nextConsumerPrefetch = prefetchCount
+            }
+        }
+
+        @Override
+        void close() {
+        }
+
+        @Override
+        void closeWithError() {
+        }
+
+        @Override
+        boolean isOpen() {
+            true
+        }
+
+        @Override
+        int getChannelNumber() {
+            1
+        }
+    }
+}
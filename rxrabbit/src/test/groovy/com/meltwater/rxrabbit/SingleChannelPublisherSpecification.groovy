@@ -3,8 +3,13 @@ package com.meltwater.rxrabbit
 import com.meltwater.rxrabbit.impl.SingleChannelPublisher
 import com.meltwater.rxrabbit.util.ConstantBackoffAlgorithm
 import com.rabbitmq.client.AMQP
+import com.rabbitmq.client.ConfirmListener
 import rx.schedulers.Schedulers
 import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 
 class SingleChannelPublisherSpecification extends Specification {
 
@@ -60,6 +65,161 @@ class SingleChannelPublisherSpecification extends Specification {
 
     }
 
+    def 'publishes a batch back to back on one channel and completes when the whole batch is confirmed'(){
+        setup:
+            SingleChannelPublisher publisher = new SingleChannelPublisher(channelFactory, true, 3, scheduler, metrics, 10, 1, 1, new ConstantBackoffAlgorithm(100))
+            ConfirmListener listener = null
+            long seqNo = 0
+            int published = 0
+            def batch = (1..3).collect { new PublishRequest(ex(), rk("key-$it"), new AMQP.BasicProperties(), pl("$it".getBytes())) }
+
+        when:'publishing a batch and the broker confirms all messages with one multiple ack'
+            def result = publisher.call(batch)
+                    .toObservable()
+                    .map {false}
+                    .onErrorReturn {true}
+                    .toBlocking()
+                    .toFuture()
+            new PollingConditions(timeout: 5).eventually { assert published == 3 }
+            listener.handleAck(3l, true)
+
+        then:'one channel is created and all messages are published with contiguous sequence numbers'
+            1 * channelFactory.createPublishChannel() >> channel
+            1 * channel.confirmSelect()
+            1 * channel.addConfirmListener(_) >> { args -> listener = args[0] }
+            3 * channel.getNextPublishSeqNo() >> { ++seqNo }
+            1 * channel.basicPublish(_, 'key-1', _ ,_) >> { published++ }
+            1 * channel.basicPublish(_, 'key-2', _ ,_) >> { published++ }
+            1 * channel.basicPublish(_, 'key-3', _ ,_) >> { published++ }
+            0 * _
+        and:
+            assert !result.get(5, TimeUnit.SECONDS)
+    }
+
+    def 'delays publishing when the in flight window is full until earlier messages are confirmed'(){
+        setup:
+            SingleChannelPublisher publisher = new SingleChannelPublisher(channelFactory, true, 3, scheduler, metrics, 10, 1, 1, new ConstantBackoffAlgorithm(100), 1, 0)
+            ConfirmListener listener = null
+            long seqNo = 0
+            int published = 0
+            channelFactory.createPublishChannel() >> channel
+            channel.addConfirmListener(_) >> { args -> listener = args[0] }
+            channel.getNextPublishSeqNo() >> { ++seqNo }
+            channel.basicPublish(_, _, _ ,_) >> { published++ }
+            def conditions = new PollingConditions(timeout: 5)
+
+        when:'publishing two messages with room for only one in flight'
+            def first = publisher.call(ex(), rk('key'), new AMQP.BasicProperties(), pl("1".getBytes())).toObservable().toBlocking().toFuture()
+            def second = publisher.call(ex(), rk('key'), new AMQP.BasicProperties(), pl("2".getBytes())).toObservable().toBlocking().toFuture()
+            conditions.eventually { assert published == 1 }
+            Thread.sleep(200)
+
+        then:'only the first message is published'
+            published == 1
+            publisher.getMessagesInFlight() == 1
+
+        when:'the first message is confirmed'
+            listener.handleAck(1l, false)
+
+        then:'the second message is published'
+            conditions.eventually { assert published == 2 }
+            first.get(5, TimeUnit.SECONDS) == null
+
+        when:
+            listener.handleAck(2l, false)
+
+        then:
+            second.get(5, TimeUnit.SECONDS) == null
+            publisher.getMessagesInFlight() == 0
+    }
+
+    def 'completes publishes on the thread given by the completion mode and records the latencies'(){
+        setup:
+            def observeOnScheduler = Schedulers.from(Executors.newSingleThreadExecutor({ r -> new Thread(r, 'observe-on-thread') }))
+            def latencies = new PublishLatencyRecorder()
+            SingleChannelPublisher publisher = new SingleChannelPublisher(channelFactory, confirms, 3, observeOnScheduler, metrics, 10, 1, 1, new ConstantBackoffAlgorithm(100), 0, 0, mode, latencies)
+            ConfirmListener listener = null
+            long seqNo = 0
+            int published = 0
+            channelFactory.createPublishChannel() >> channel
+            channel.addConfirmListener(_) >> { args -> listener = args[0] }
+            channel.getNextPublishSeqNo() >> { ++seqNo }
+            channel.basicPublish(_, _, _ ,_) >> { published++ }
+
+        when:'publishing two messages that are confirmed with one multiple ack'
+            def threads = (1..2).collect {
+                publisher.call(ex(), rk('key'), new AMQP.BasicProperties(), pl("$it".getBytes()))
+                        .map { Thread.currentThread().name }
+                        .toObservable().toBlocking().toFuture()
+            }
+            new PollingConditions(timeout: 5).eventually { assert published == 2 }
+            if (confirms) {
+                listener.handleAck(2l, true)
+            }
+
+        then:
+            threads.every { it.get(5, TimeUnit.SECONDS).startsWith(threadPrefix) }
+        and:
+            def snapshot = latencies.snapshot()
+            [snapshot.scheduling, snapshot.write, snapshot.confirm]*.count == [2, 2, confirms ? 2 : 0]
+            !confirms || snapshot.confirm.maxNanos > 0
+
+        where:
+            mode                                 | confirms | threadPrefix
+            PublishCompletionMode.OBSERVE_ON     | true     | 'observe-on-thread'
+            PublishCompletionMode.CONFIRM_THREAD | true     | 'rabbit-confirm-thread-'
+            PublishCompletionMode.BATCHED        | true     | 'observe-on-thread'
+            PublishCompletionMode.BATCHED        | false    | 'observe-on-thread'
+    }
+
+    def 'reports the events after the write of a publish attempt with one event instance'(){
+        setup:
+            def listener = Mock(PublishEventListener)
+            SingleChannelPublisher publisher = new SingleChannelPublisher(channelFactory, false, 3, scheduler, listener, 1, 1, 1, new ConstantBackoffAlgorithm(100))
+            def events = []
+            channelFactory.createPublishChannel() >> channel
+            channel.getNextPublishSeqNo() >> 1l
+
+        when:
+            publisher.call(ex(), rk('key'), new AMQP.BasicProperties(), pl("".getBytes())).toObservable().toBlocking().last()
+
+        then:
+            1 * listener.beforePublish(_) >> { args -> events << args[0] }
+            1 * listener.afterPublish(_) >> { args -> events << args[0] }
+            1 * listener.afterConfirm(_) >> { args -> events << args[0] }
+        and:
+            events.size() == 3
+            events[2].is(events[1])
+            events.every { it.routingKey.value == 'key' }
+            events[0].publishCompletedAtTimestamp == 0
+            events[1].publishCompletedAtTimestamp > 0
+    }
+
+    def 'fails the publish if the event listener throws before the message is written'(){
+        setup:
+            def listener = Mock(PublishEventListener)
+            SingleChannelPublisher publisher = new SingleChannelPublisher(channelFactory, true, 1, scheduler, listener, 1, 1, 1, new ConstantBackoffAlgorithm(100))
+            channelFactory.createPublishChannel() >> channel
+            channel.getNextPublishSeqNo() >> 1l
+
+        when:
+            def error = publisher.call(ex(), rk('key'), new AMQP.BasicProperties(), pl("".getBytes()))
+                    .toObservable()
+                    .map { null }
+                    .onErrorReturn { it }
+                    .timeout(5, TimeUnit.SECONDS)
+                    .toBlocking()
+                    .last()
+
+        then:
+            1 * listener.beforePublish(_) >> { throw new IllegalStateException('listener failed') }
+            1 * listener.afterFinalFail(_, _)
+            0 * channel.basicPublish(_, _, _ ,_)
+        and:
+            error instanceof IllegalStateException
+            publisher.getMessagesInFlight() == 0
+    }
+
     private Void triggerstuff(lRef) {
 
             lRef.get().handleAck(1l, false);
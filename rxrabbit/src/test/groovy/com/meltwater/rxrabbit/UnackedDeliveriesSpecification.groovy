@@ -0,0 +1,92 @@
+package com.meltwater.rxrabbit
+
+import com.meltwater.rxrabbit.impl.UnackedDeliveries
+import spock.lang.Specification
+
+class UnackedDeliveriesSpecification extends Specification {
+
+    def 'keeps track of the outstanding deliveries and the oldest one'(){
+        setup:
+            def unacked = new UnackedDeliveries(4)
+
+        when:
+            (1..10).each { unacked.put(it, it * 100) }
+            unacked.remove(1)
+            unacked.remove(3)
+
+        then:
+            unacked.size() == 8
+            unacked.oldestReceivedAt == 200
+            unacked.countReceivedBefore(500) == 3
+            !unacked.remove(3)
+            !unacked.remove(11)
+
+        when:
+            unacked.remove(2)
+
+        then:
+            unacked.oldestReceivedAt == 400
+    }
+
+    def 'keeps the memory bounded when one delivery is left outstanding while later ones are acked'(){
+        setup:
+            def unacked = new UnackedDeliveries(4)
+            unacked.put(1, 1)
+
+        when:
+            (2..100_000).each { unacked.put(it, it); unacked.remove(it) }
+
+        then:
+            unacked.size() == 1
+            unacked.oldestReceivedAt == 1
+            unacked.@receivedAt.length <= 32
+
+        when:
+            (100_001..100_010).each { unacked.put(it, it) }
+
+        then:
+            unacked.size() == 11
+            unacked.countReceivedBefore(100_005) == 6
+            unacked.remove(1)
+            !unacked.remove(1)
+            unacked.oldestReceivedAt == 100_001
+            unacked.size() == 10
+    }
+
+    def 'completes the empty future when the last outstanding delivery is removed'(){
+        setup:
+            def unacked = new UnackedDeliveries(4)
+            (1..3).each { unacked.put(it, it) }
+
+        when:
+            def empty = unacked.whenEmpty()
+            unacked.remove(1)
+            unacked.remove(3)
+
+        then:
+            !empty.isDone()
+
+        when:
+            unacked.remove(2)
+
+        then:
+            empty.isDone()
+            unacked.whenEmpty().isDone()
+            unacked.oldestReceivedAt == 0
+    }
+
+    def 'keeps track of the time without outstanding deliveries'(){
+        setup:
+            def unacked = new UnackedDeliveries(4)
+            unacked.takeEmptyMillis(1000)
+
+        when:
+            unacked.put(1, 1300)
+            unacked.remove(1)
+            def start = System.currentTimeMillis()
+
+        then:
+            unacked.takeEmptyMillis(start + 500) >= 800
+            unacked.takeEmptyMillis(start + 600) == 100
+    }
+}
@@ -29,6 +29,7 @@ import rx.schedulers.Schedulers;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -50,6 +51,7 @@ import java.util.concurrent.atomic.AtomicReference;
 
 import static com.meltwater.rxrabbit.RabbitTestUtils.createQueues;
 import static com.meltwater.rxrabbit.RabbitTestUtils.declareAndBindQueue;
+import static com.meltwater.rxrabbit.RabbitTestUtils.getChannelCounts;
 import static com.meltwater.rxrabbit.RabbitTestUtils.realm;
 import static com.meltwater.rxrabbit.RabbitTestUtils.waitForAllConnectionsToClose;
 import static com.meltwater.rxrabbit.RabbitTestUtils.waitForNumQueuesToBePresent;
@@ -885,6 +887,65 @@ public class RxRabbitTests {
         assertTrue(completed.get());
     }
 
+    @Test
+    public void spreads_channels_over_the_connections_per_type() throws Exception {
+        final ConnectionSettings pooledSettings = new ConnectionSettings()
+                .withHeartbeatSecs(1)
+                .withConnectionTimeoutMillis(500)
+                .withShutdownTimeoutMillis(5_000)
+                .withConnectionsPerType(3);
+        final DefaultChannelFactory pooledFactory = new DefaultChannelFactory(new BrokerAddresses("amqp://localhost:" + rabbitTcpPort), pooledSettings);
+        final List<PublishChannel> channels = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            channels.add(pooledFactory.createPublishChannel());
+        }
+        assertThat(pooledFactory.getOpenConnections().size(), is(3));
+
+        List<Integer> channelCounts = getChannelCounts(httpClient, rabbitAdminPort, "publish");
+        for (int i = 0; i < 100 && !channelCounts.equals(Arrays.asList(2, 2, 2)); i++) {
+            Thread.sleep(100);
+            channelCounts = getChannelCounts(httpClient, rabbitAdminPort, "publish");
+        }
+        assertEquals(Arrays.asList(2, 2, 2), channelCounts);
+
+        for (PublishChannel channel : channels) {
+            channel.close();
+        }
+        waitForAllConnectionsToClose(pooledFactory, dockerContainers);
+        assertThat(pooledFactory.getOpenConnections().size(), is(0));
+    }
+
+    @Test
+    public void publishes_and_consumes_over_nio_with_shared_io_threads() throws Exception {
+        final ConnectionSettings nioSettings = new ConnectionSettings()
+                .withHeartbeatSecs(1)
+                .withConnectionTimeoutMillis(500)
+                .withShutdownTimeoutMillis(5_000)
+                .withNio(1);
+        final DefaultChannelFactory nioFactory = new DefaultChannelFactory(new BrokerAddresses("amqp://localhost:" + rabbitTcpPort), nioSettings);
+        final RabbitPublisher nioPublisher = new DefaultPublisherFactory(nioFactory, publishSettings).createPublisher();
+        final Subscription consumer = startConsuming(RabbitTestUtils.createConsumer(new DefaultConsumerFactory(nioFactory, consumeSettings), inputQueue));
+
+        int nrMessages = 500;
+        SortedSet<Integer> sent = sendNMessages(nrMessages, nioPublisher);
+        waitForNMessages(nrMessages);
+        assertEquals(sent, messagesSeen);
+
+        //The publish and the consume connection share the one IO thread
+        assertThat(nioFactory.getOpenConnections().size(), is(2));
+        final Set<String> nioThreads = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("rabbit-nio-")) {
+                nioThreads.add(thread.getName());
+            }
+        }
+        assertThat(nioThreads.toString(), nioThreads.size(), is(1));
+
+        consumer.unsubscribe();
+        nioPublisher.close();
+        waitForAllConnectionsToClose(nioFactory, dockerContainers);
+    }
+
     private void deleteQueue(String inputQueue, AdminChannel testChannel) throws IOException {
         testChannel.queueDelete(inputQueue, false, false);
     }
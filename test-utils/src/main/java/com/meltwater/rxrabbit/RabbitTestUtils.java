@@ -11,6 +11,7 @@ import org.joda.time.DateTime;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -136,6 +137,24 @@ public class RabbitTestUtils {
         return connections;
     }
 
+    public static List<Integer> getChannelCounts(AsyncHttpClient httpClient, String rabbitAdminPort, String connectionType) throws Exception {
+        final Response response = httpClient
+                .prepareGet("http://localhost:" + rabbitAdminPort + "/api/connections")
+                .setRealm(realm)
+                .execute().get();
+        ObjectMapper mapper = new ObjectMapper();
+        List<Integer> channelCounts = new ArrayList<>();
+        final List<Map<String,Object>> list = mapper.readValue(response.getResponseBody(), List.class);
+        for(Map<String,Object> entry : list){
+            final Map<String,Object> clientProperties = (Map<String,Object>) entry.get("client_properties");
+            if (clientProperties != null && connectionType.equals(clientProperties.get("connection_type"))) {
+                channelCounts.add(entry.get("channels") == null ? 0 : ((Number) entry.get("channels")).intValue());
+            }
+        }
+        Collections.sort(channelCounts);
+        return channelCounts;
+    }
+
     public static int countConsumers(AsyncHttpClient httpClient, String rabbitAdminPort) throws Exception {
         final Response response = httpClient
                 .prepareGet("http://localhost:" + rabbitAdminPort + "/api/channels")